@@ -0,0 +1,161 @@
+package org.chargecar.algodev;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.chargecar.algodev.policies.KnnMMDPLive;
+import org.chargecar.algodev.predictors.Prediction;
+import org.chargecar.algodev.predictors.knn.KnnDistPredictor;
+import org.chargecar.prize.battery.BatteryModel;
+import org.chargecar.prize.battery.LiFePo4;
+import org.chargecar.prize.battery.SimpleCapacitor;
+import org.chargecar.prize.util.GPXTripParser;
+import org.chargecar.prize.util.PointFeatures;
+import org.chargecar.prize.util.PowerFlowException;
+import org.chargecar.prize.util.PowerFlows;
+import org.chargecar.prize.util.Trip;
+import org.chargecar.prize.util.TripFeatures;
+import org.chargecar.prize.util.Vehicle;
+
+/**
+ * Runs KnnMMDPLive over GPX trips with exact neighbour search and, at every
+ * step, also asks the controller with approximate neighbours on the same
+ * state. Reports how often the approximate control matches the exact one,
+ * how far off it is, and the search times of both.
+ *
+ * e.g. java ApproxKnnReport "C:\ccpdata\gpxdata\test" 9 0.5 200
+ */
+public class ApproxKnnReport {
+    static Vehicle civic = new Vehicle(1200, 1.988, 0.31, 0.015);
+    static double systemVoltage = 120;
+    static double batteryWhr = 50000;
+    static double capWhr = 50;
+
+    public static void main(String[] args) throws IOException {
+	if (args == null || args.length < 4) {
+	    System.err.println("ERROR: Provide GPX, k, epsilon and max visits");
+	    System.exit(1);
+	}
+	File folder = new File(args[0]);
+	int k = Integer.parseInt(args[1]);
+	double epsilon = Double.parseDouble(args[2]);
+	int maxVisits = Integer.parseInt(args[3]);
+
+	List<File> gpxFiles;
+	if(folder.isDirectory()){
+	    gpxFiles = SimulatorKNN.getGPXFiles(folder);
+	}else{
+	    gpxFiles = new ArrayList<File>();
+	    gpxFiles.add(folder);
+	}
+
+	ComparingPolicy policy = new ComparingPolicy(k, epsilon, maxVisits);
+	for (File gpxFile : gpxFiles) {
+	    for (Trip trip : parseTrips(gpxFile)) {
+		if(trip.getPoints().size() > 3600) continue;
+		try {
+		    simulate(policy, trip);
+		} catch (PowerFlowException e) {
+		    e.printStackTrace();
+		}
+	    }
+	}
+	policy.report();
+    }
+
+    private static void simulate(ComparingPolicy policy, Trip trip) throws PowerFlowException {
+	BatteryModel battery = new LiFePo4(batteryWhr, batteryWhr, systemVoltage);
+	BatteryModel cap = new SimpleCapacitor(capWhr, 0, systemVoltage);
+	policy.beginTrip(trip.getFeatures(), battery.createClone(), cap.createClone());
+	for (PointFeatures point : trip.getPoints()) {
+	    PowerFlows pf = policy.calculatePowerFlows(point);
+	    battery.drawPower(pf.getBatteryToCapacitor()
+		    + pf.getBatteryToMotor(), point.getPeriodMS());
+	    cap.drawPower(pf.getCapacitorToMotor()
+		    - pf.getBatteryToCapacitor(), point.getPeriodMS());
+	}
+	policy.endTrip(trip);
+    }
+
+    private static List<Trip> parseTrips(File gpxFile) throws IOException {
+	List<Trip> trips = new ArrayList<Trip>();
+	int i=0;
+	GPXTripParser gpxparser = new GPXTripParser();
+	for (List<PointFeatures> tripPoints : gpxparser.read(gpxFile, civic)) {
+	    String driverName = gpxFile.getParentFile().getName();
+	    String fileName = driverName+gpxFile.getName().substring(0, gpxFile.getName().lastIndexOf('.'))+"_"+i;
+	    TripFeatures tf = new TripFeatures(driverName, fileName, civic, tripPoints.get(0));
+	    trips.add(new Trip(tf, tripPoints));
+	    gpxparser.clear();
+	    i++;
+	}
+	return trips;
+    }
+
+    /**
+     * Drives with the exact control, the approximate one is only compared.
+     */
+    private static class ComparingPolicy extends KnnMMDPLive {
+	private final double epsilon;
+	private final int maxVisits;
+	private long steps;
+	private long sameControl;
+	private double controlErrorSum;
+	private double maxControlError;
+	private long exactNanos;
+	private long approxNanos;
+	private long approxVisits;
+	private final List<Long> approxTimes = new ArrayList<Long>();
+
+	ComparingPolicy(int neighbors, double epsilon, int maxVisits){
+	    super(neighbors, 20, 0.99);
+	    this.epsilon = epsilon;
+	    this.maxVisits = maxVisits;
+	}
+
+	@Override
+	public double getFlow(PointFeatures pf){
+	    KnnDistPredictor predictor = (KnnDistPredictor)knnPredictor;
+	    predictor.setApproximation(0, Integer.MAX_VALUE);
+	    long start = System.nanoTime();
+	    List<Prediction> exact = predictor.predictDuty(pf);
+	    exactNanos += System.nanoTime() - start;
+
+	    predictor.setApproximation(epsilon, maxVisits);
+	    start = System.nanoTime();
+	    List<Prediction> approx = predictor.predictDuty(pf);
+	    long nanos = System.nanoTime() - start;
+	    approxNanos += nanos;
+	    approxTimes.add(nanos);
+	    approxVisits += predictor.getLastVisits();
+
+	    double exactControl = controller.getControl(exact, modelBatt, modelCap, pf.getPeriodMS(), pf.getPowerDemand());
+	    double approxControl = controller.getControl(approx, modelBatt, modelCap, pf.getPeriodMS(), pf.getPowerDemand());
+	    double error = Math.abs(exactControl - approxControl);
+	    steps++;
+	    if(error == 0) sameControl++;
+	    controlErrorSum += error;
+	    maxControlError = Math.max(maxControlError, error);
+	    return exactControl;
+	}
+
+	void report(){
+	    if(steps == 0){
+		System.out.println("No steps simulated.");
+		return;
+	    }
+	    long[] times = new long[approxTimes.size()];
+	    for(int i=0;i<times.length;i++) times[i] = approxTimes.get(i);
+	    Arrays.sort(times);
+	    System.out.println("Steps: "+steps+", epsilon "+epsilon+", max visits "+maxVisits);
+	    System.out.println("Same control: "+(100.0*sameControl/steps)+"%");
+	    System.out.println("Mean control difference: "+(controlErrorSum/steps)+"W, max: "+maxControlError+"W");
+	    System.out.println("Mean search, exact: "+(exactNanos/steps/1000)+"us, approximate: "+(approxNanos/steps/1000)+"us");
+	    System.out.println("Approximate search p99: "+(times[(int)(0.99*(times.length-1))]/1000)+"us, max: "+(times[times.length-1]/1000)+"us");
+	    System.out.println("Mean approximate visits: "+(approxVisits/steps));
+	}
+    }
+}
@@ -3,36 +3,292 @@ package org.chargecar.algodev;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.chargecar.algodev.knn.BucketKdTree;
+import org.chargecar.algodev.knn.FlatKdTree;
+import org.chargecar.algodev.knn.KdForest;
 import org.chargecar.algodev.knn.FullFeatureSet;
+import org.chargecar.algodev.knn.GridKdIndex;
 import org.chargecar.algodev.knn.KdTree;
+import org.chargecar.algodev.knn.KnnBatch;
+import org.chargecar.algodev.knn.KnnIndex;
 import org.chargecar.algodev.knn.KnnPoint;
+import org.chargecar.algodev.knn.KnnQuery;
+import org.chargecar.algodev.predictors.Prediction;
 import org.chargecar.prize.util.PointFeatures;
 
 public class KdTreeTester {
-    private final static int N = 250000; //knn History Size
-    private final static int M = 20000; //Testing set size
+    private static int N = 250000; //knn History Size
+    private static int M = 20000; //Testing set size
     private final static int k = 7; //number of neighbors to search
+    private final static int TRIPS = 500; //distinct trips in the history
     public static void main(String[] args) {
+	if(args.length >= 2){
+	    N = Integer.parseInt(args[0]);
+	    M = Integer.parseInt(args[1]);
+	}
 	List<KnnPoint> points = new ArrayList<KnnPoint>();
 	System.out.print("Creating "+N+" random Points...");
 	for(int i=0;i<N;i++){
-	    points.add(new KnnPoint(getRandomPoint(), 0,0));
+	    points.add(new KnnPoint(getRandomPoint(), i, i%TRIPS));
+	}
+	List<PointFeatures> searchPoints = new ArrayList<PointFeatures>();
+	for(int i=0;i<M;i++){
+	    searchPoints.add(getRandomPoint());
 	}
 	System.out.print("complete.\n");
-	System.out.print("Building tree...");
+
+	long start = System.nanoTime();
 	KdTree tree = new KdTree(points, new FullFeatureSet());
-	System.out.print("complete.\n");
+	System.out.println("KdTree built in "+millisSince(start)+"ms.");
+	start = System.nanoTime();
+	FlatKdTree flatTree = new FlatKdTree(points, new FullFeatureSet());
+	System.out.println("FlatKdTree built in "+millisSince(start)+"ms.");
+	start = System.nanoTime();
+	new KdTree(points, new FullFeatureSet(), true);
+	System.out.println("KdTree parallel build in "+millisSince(start)+"ms.");
+	start = System.nanoTime();
+	new FlatKdTree(points, new FullFeatureSet(), true);
+	System.out.println("FlatKdTree parallel build in "+millisSince(start)+"ms.");
+
 	System.out.println("Matching "+M+" points with "+k+" neighbors each...");
+	List<List<Prediction>> treeResults = match(tree, searchPoints);
+	List<List<Prediction>> flatResults = match(flatTree, searchPoints);
+	matchReusingQuery(flatTree, searchPoints);
+	matchThreaded(tree, searchPoints);
+	matchThreaded(flatTree, searchPoints);
+
+	int mismatches = 0;
 	for(int i=0;i<M;i++){
-	    tree.getNeighbors(getRandomPoint(), k, null, false);
-	    if(i%1000 == 0){
-		System.out.println(i+"...");
+	    if(!sameNeighbors(treeResults.get(i), flatResults.get(i))) mismatches++;
+	}
+	System.out.println("Result mismatches: "+mismatches);
+
+	for(int leafSize : new int[]{8, 16, 32, 64}){
+	    start = System.nanoTime();
+	    BucketKdTree bucketTree = new BucketKdTree(points, new FullFeatureSet(), leafSize);
+	    System.out.println("BucketKdTree("+leafSize+") built in "+millisSince(start)+"ms.");
+	    List<List<Prediction>> bucketResults = match(bucketTree, searchPoints);
+	    matchReusingQuery(bucketTree, searchPoints);
+	    mismatches = 0;
+	    for(int i=0;i<M;i++){
+		if(!sameNeighbors(treeResults.get(i), bucketResults.get(i))) mismatches++;
 	    }
+	    System.out.println("BucketKdTree("+leafSize+") result mismatches: "+mismatches);
+	}
+
+	start = System.nanoTime();
+	GridKdIndex grid = new GridKdIndex(points, new FullFeatureSet());
+	System.out.println("GridKdIndex of "+grid.getCellCount()+" cells built in "+millisSince(start)+"ms.");
+	List<List<Prediction>> gridResults = match(grid, searchPoints);
+	matchReusingQuery(grid, searchPoints);
+	mismatches = 0;
+	for(int i=0;i<M;i++){
+	    if(!sameNeighbors(treeResults.get(i), gridResults.get(i))) mismatches++;
+	}
+	System.out.println("GridKdIndex result mismatches: "+mismatches);
+
+	matchBatch(tree, searchPoints, treeResults);
+	matchForest(points, searchPoints.subList(0, Math.min(M, 500)));
+
+	KdTree grown = growOnline(points);
+	mismatches = 0;
+	for(int i=0;i<M;i++){
+	    if(!sameNeighbors(treeResults.get(i), grown.getNeighbors(searchPoints.get(i), k, null, false))) mismatches++;
 	}
+	System.out.println("Online tree result mismatches: "+mismatches);
+
+	compareBatchedDistance(points, searchPoints);
 	System.out.println("Complete.");
     }
     
+    private static List<List<Prediction>> match(KnnIndex index, List<PointFeatures> searchPoints){
+	List<List<Prediction>> results = new ArrayList<List<Prediction>>(searchPoints.size());
+	long start = System.nanoTime();
+	for(PointFeatures pf : searchPoints){
+	    results.add(index.getNeighbors(pf, k, null, false));
+	}
+	System.out.println(index.getClass().getSimpleName()+": "+millisSince(start)+"ms.");
+	return results;
+    }
+
+    private static void matchReusingQuery(KnnIndex index, List<PointFeatures> searchPoints){
+	KnnQuery query = new KnnQuery();
+	long start = System.nanoTime();
+	for(PointFeatures pf : searchPoints){
+	    index.getNeighbors(pf, k, false, query);
+	}
+	System.out.println(index.getClass().getSimpleName()+" reusing one KnnQuery: "+millisSince(start)+"ms.");
+    }
+
+    /**
+     * Throughput of one shared tree searched from 1, 2, 4... threads.
+     */
+    private static void matchThreaded(final KnnIndex index, final List<PointFeatures> searchPoints){
+	int maxThreads = Runtime.getRuntime().availableProcessors();
+	for(int threads = 1; threads <= maxThreads; threads *= 2){
+	    ExecutorService pool = Executors.newFixedThreadPool(threads);
+	    List<Future<?>> futures = new ArrayList<Future<?>>();
+	    int chunk = (searchPoints.size() + threads - 1) / threads;
+	    long start = System.nanoTime();
+	    for(int t = 0; t < threads; t++){
+		final List<PointFeatures> part = searchPoints.subList(Math.min(t*chunk, searchPoints.size()), Math.min((t+1)*chunk, searchPoints.size()));
+		futures.add(pool.submit(new Runnable(){
+		    public void run(){
+			KnnQuery query = new KnnQuery();
+			for(PointFeatures pf : part){
+			    index.getNeighbors(pf, k, false, query);
+			}
+		    }
+		}));
+	    }
+	    try {
+		for(Future<?> f : futures) f.get();
+	    } catch (Exception e) {
+		e.printStackTrace();
+	    }
+	    long millis = Math.max(1, millisSince(start));
+	    System.out.println(index.getClass().getSimpleName()+" "+threads+" threads: "+millis+"ms, "+(searchPoints.size()*1000L/millis)+" queries/s.");
+	    pool.shutdown();
+	}
+    }
+
+    private static void matchBatch(KdTree tree, List<PointFeatures> searchPoints, List<List<Prediction>> expected){
+	long start = System.nanoTime();
+	List<List<Prediction>> batch = tree.getNeighborsBatch(searchPoints, k, false);
+	System.out.println("KdTree batch: "+millisSince(start)+"ms.");
+	ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+	start = System.nanoTime();
+	List<List<Prediction>> pooled = tree.getNeighborsBatch(searchPoints, k, false, pool);
+	System.out.println("KdTree batch on "+Runtime.getRuntime().availableProcessors()+" threads: "+millisSince(start)+"ms.");
+	pool.shutdown();
+	int mismatches = 0;
+	for(int i=0;i<searchPoints.size();i++){
+	    if(!sameNeighbors(expected.get(i), batch.get(i)) || !sameNeighbors(expected.get(i), pooled.get(i))) mismatches++;
+	}
+	System.out.println("Batch result mismatches: "+mismatches);
+    }
+
+    /**
+     * One expert per trip, as KnnForestPredictor builds them.
+     */
+    private static void matchForest(List<KnnPoint> points, List<PointFeatures> searchPoints){
+	List<List<KnnPoint>> trips = new ArrayList<List<KnnPoint>>();
+	for(int i=0;i<TRIPS;i++) trips.add(new ArrayList<KnnPoint>());
+	for(KnnPoint kp : points) trips.get(kp.getTripID()).add(kp);
+	KdForest forest = new KdForest(new FullFeatureSet());
+	for(List<KnnPoint> trip : trips) forest.addExpert(trip);
+
+	long start = System.nanoTime();
+	List<List<Prediction>> single = new ArrayList<List<Prediction>>();
+	for(PointFeatures pf : searchPoints){
+	    single.add(forest.getNeighbors(pf, false));
+	}
+	System.out.println("KdForest of "+TRIPS+" experts: "+millisSince(start)+"ms for "+searchPoints.size()+" points.");
+	start = System.nanoTime();
+	List<List<Prediction>> batch = forest.getNeighborsBatch(searchPoints, false);
+	System.out.println("KdForest batch: "+millisSince(start)+"ms.");
+	int mismatches = 0;
+	for(int i=0;i<searchPoints.size();i++){
+	    if(!sameNeighbors(single.get(i), batch.get(i))) mismatches++;
+	}
+	System.out.println("KdForest batch result mismatches: "+mismatches);
+
+	forest.setPool(KnnBatch.sharedPool());
+	start = System.nanoTime();
+	mismatches = 0;
+	for(int i=0;i<searchPoints.size();i++){
+	    if(!sameNeighbors(single.get(i), forest.getNeighbors(searchPoints.get(i), false))) mismatches++;
+	}
+	System.out.println("KdForest parallel experts: "+millisSince(start)+"ms, result mismatches: "+mismatches);
+    }
+
+    /**
+     * Inserts the history one point at a time, reporting the insert cost of
+     * each tenth so growth in per point cost shows up.
+     */
+    private static KdTree growOnline(List<KnnPoint> points){
+	KdTree tree = new KdTree(null, new FullFeatureSet());
+	int step = Math.max(1, points.size()/10);
+	long start = System.nanoTime();
+	for(int i=0;i<points.size();i++){
+	    tree.addNode(points.get(i));
+	    if((i+1) % step == 0){
+		System.out.println("Inserted "+(i+1)+" points, last "+step+" in "+millisSince(start)+"ms.");
+		start = System.nanoTime();
+	    }
+	}
+	return tree;
+    }
+
+    /**
+     * Scores every point against each query one at a time and with the
+     * column-wise batched kernel, in blocks of BLOCK points.
+     */
+    private static void compareBatchedDistance(List<KnnPoint> points, List<PointFeatures> searchPoints){
+	final int BLOCK = 64;
+	FullFeatureSet fs = new FullFeatureSet();
+	int dims = fs.getDimensionCount();
+	int n = points.size() - points.size() % BLOCK;
+	double[] rows = new double[n*dims];
+	double[] columns = new double[n*dims];
+	double[] vector = new double[dims];
+	for(int i=0;i<n;i++){
+	    fs.getVector(points.get(i).getFeatures(), vector);
+	    System.arraycopy(vector, 0, rows, i*dims, dims);
+	    int block = i - i % BLOCK;
+	    for(int a=0;a<dims;a++){
+		columns[block*dims + a*BLOCK + i % BLOCK] = vector[a];
+	    }
+	}
+	int queries = Math.min(searchPoints.size(), 1000);
+	int warmup = queries/5;
+	double[] scalar = new double[n];
+	double[] batched = new double[BLOCK];
+	long scalarNanos = 0, batchedNanos = 0;
+	double sum = 0;
+	int differences = 0;
+	for(int q=0;q<queries;q++){
+	    fs.getVector(searchPoints.get(q), vector);
+	    long start = System.nanoTime();
+	    for(int i=0;i<n;i++){
+		scalar[i] = fs.distance(vector, rows, i*dims);
+	    }
+	    if(q >= warmup) scalarNanos += System.nanoTime() - start;
+	    start = System.nanoTime();
+	    for(int block=0;block<n;block+=BLOCK){
+		fs.distances(vector, columns, block*dims, BLOCK, BLOCK, batched);
+		sum += batched[0];
+	    }
+	    if(q >= warmup) batchedNanos += System.nanoTime() - start;
+	    for(int block=0;block<n;block+=BLOCK){
+		fs.distances(vector, columns, block*dims, BLOCK, BLOCK, batched);
+		for(int j=0;j<BLOCK;j++){
+		    if(batched[j] != scalar[block+j]) differences++;
+		}
+	    }
+	}
+	System.out.println("Scalar distance: "+scalarNanos/1000000+"ms, batched: "+batchedNanos/1000000+"ms for "+(queries-warmup)+"x"+n+" points ("+sum+").");
+	System.out.println("Batched distance differences: "+differences);
+    }
+
+    private static boolean sameNeighbors(List<Prediction> a, List<Prediction> b){
+	if(a.size() != b.size()) return false;
+	for(int i=0;i<a.size();i++){
+	    if(a.get(i).getTripID() != b.get(i).getTripID()
+		    || a.get(i).getTimeIndex() != b.get(i).getTimeIndex())
+		return false;
+	}
+	return true;
+    }
+
+    private static long millisSince(long startNanos){
+	return (System.nanoTime() - startNanos)/1000000;
+    }
+
     private static PointFeatures getRandomPoint(){
 	Calendar randTime = Calendar.getInstance();
 	randTime.setTimeInMillis((long)(Math.random()*10e7));
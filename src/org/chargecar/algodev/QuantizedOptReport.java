@@ -0,0 +1,98 @@
+package org.chargecar.algodev;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.chargecar.algodev.controllers.DPOptController;
+import org.chargecar.algodev.controllers.OptTable;
+import org.chargecar.algodev.controllers.ValueFunction;
+import org.chargecar.algodev.predictors.Prediction;
+import org.chargecar.prize.battery.BatteryModel;
+import org.chargecar.prize.battery.SimpleCapacitor;
+
+/**
+ * Rewrites a driver's .opt file in each ValueFunction encoding and asks
+ * DPOptController for controls on the same random states with each one.
+ * Reports the file and heap size of every encoding, how often it picks the
+ * control the double values pick, and the regret: the extra expected cost,
+ * under the double values, of the control it picked.
+ *
+ * e.g. java QuantizedOptReport "C:\ccpdata\opt\driver.opt" 10000 9
+ */
+public class QuantizedOptReport {
+    static final int[] controlsSet = new int[]{-512,-1024,0,512,1024,1536,2048,2516,3072,3524,4096,5122,5500,6134,6600,7124,7600,8192,9122,10020,12000};
+    static double systemVoltage = 120;
+    static double capWhr = 50;
+    static final String[] encodingNames = {"double", "float", "scaled16"};
+
+    public static void main(String[] args) throws IOException {
+	if (args == null || args.length < 3) {
+	    System.err.println("ERROR: Provide an .opt file, sample count and neighbours");
+	    System.exit(1);
+	}
+	File optFile = new File(args[0]);
+	int samples = Integer.parseInt(args[1]);
+	int neighbors = Integer.parseInt(args[2]);
+
+	Map<Integer, double[][]> exactMap = new HashMap<Integer, double[][]>(OptTable.open(optFile));
+	List<Integer> tripIDs = new ArrayList<Integer>(exactMap.keySet());
+	System.out.println(tripIDs.size()+" trips.");
+	DPOptController exact = new DPOptController(controlsSet, exactMap, null);
+
+	for(int encoding = ValueFunction.DOUBLE; encoding <= ValueFunction.SCALED16; encoding++){
+	    File encoded = File.createTempFile("quantized", ".opt");
+	    encoded.deleteOnExit();
+	    OptTable.write(encoded, exactMap, encoding);
+	    OptTable table = (OptTable)OptTable.open(encoded);
+	    long heapBytes = 0;
+	    for(Integer tripID : tripIDs) heapBytes += table.getValueFunction(tripID).getMemoryBytes();
+	    DPOptController controller = new DPOptController(controlsSet, table, null);
+
+	    //same states for every encoding
+	    Random random = new Random(42);
+	    int same = 0;
+	    double regretSum = 0, maxRegret = 0, relativeSum = 0;
+	    for(int s=0;s<samples;s++){
+		List<Prediction> predictions = new ArrayList<Prediction>();
+		for(int n=0;n<neighbors;n++){
+		    int tripID = tripIDs.get(random.nextInt(tripIDs.size()));
+		    int T = exactMap.get(tripID)[0].length;
+		    predictions.add(new Prediction(1.0/neighbors, tripID, random.nextInt(Math.max(1, T-1)), null));
+		}
+		BatteryModel cap = new SimpleCapacitor(capWhr, random.nextDouble()*capWhr, systemVoltage);
+		double powerDemand = -20000 + random.nextDouble()*60000;
+
+		double[] exactValues = exact.getControlValues(predictions, cap, powerDemand);
+		int best = argMin(exactValues);
+		int chosen = argMin(controller.getControlValues(predictions, cap, powerDemand));
+		if(chosen == best) same++;
+		double regret = exactValues[chosen] - exactValues[best];
+		regretSum += regret;
+		maxRegret = Math.max(maxRegret, regret);
+		if(exactValues[best] != 0) relativeSum += regret / Math.abs(exactValues[best]);
+	    }
+	    System.out.println(encodingNames[encoding]+": file "+(encoded.length()/1024)+"KB, heap "+(heapBytes/1024)+"KB"
+		    +", same control "+(100.0*same/samples)+"%, mean regret "+(regretSum/samples)
+		    +", max regret "+maxRegret+", mean relative regret "+(relativeSum/samples));
+	    encoded.delete();
+	}
+    }
+
+    //first smallest, like DPOptController.getControl
+    private static int argMin(double[] values){
+	int best = 0;
+	double minValue = Double.MAX_VALUE;
+	for(int i=0;i<values.length;i++){
+	    if(values[i] < minValue){
+		minValue = values[i];
+		best = i;
+	    }
+	}
+	return best;
+    }
+}
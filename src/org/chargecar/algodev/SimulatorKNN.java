@@ -9,6 +9,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.PriorityQueue;
 
+import org.chargecar.algodev.policies.DriverPrefetcher;
 import org.chargecar.algodev.policies.KnnDistPolyPolicy;
 import org.chargecar.algodev.policies.KnnDistributionPolicy;
 import org.chargecar.algodev.policies.KnnMMDPLive;
@@ -17,13 +18,13 @@ import org.chargecar.prize.battery.LiFePo4;
 import org.chargecar.prize.battery.SimpleCapacitor;
 import org.chargecar.prize.policies.NoCapPolicy;
 import org.chargecar.prize.policies.Policy;
-import org.chargecar.prize.util.GPXTripParser;
+import org.chargecar.prize.util.ParallelTripReader;
 import org.chargecar.prize.util.PointFeatures;
 import org.chargecar.prize.util.PowerFlowException;
 import org.chargecar.prize.util.PowerFlows;
 import org.chargecar.prize.util.SimulationResults;
 import org.chargecar.prize.util.Trip;
-import org.chargecar.prize.util.TripFeatures;
+import org.chargecar.prize.util.TripCache;
 import org.chargecar.prize.util.Vehicle;
 import org.chargecar.prize.visualization.CSVWriter;
 import org.chargecar.prize.visualization.ConsoleWriter;
@@ -39,6 +40,7 @@ import org.chargecar.prize.visualization.Visualizer;
  */
 public class SimulatorKNN {
     static Vehicle civic = new Vehicle(1200, 1.988, 0.31, 0.015);
+    static TripCache tripCache = TripCache.getDefault();
       
     static Visualizer visualizer = new ConsoleWriter();
   //  static Visualizer visualizer2 = new CSVWriter("/home/astyler/Dropbox/illahasthor50whr.csv");
@@ -95,35 +97,55 @@ public class SimulatorKNN {
 //	visualizer2.visualizeTrips(results);
     }    
     
-    private static List<SimulationResults> simulateTrips(List<Policy> policies,
-	    List<File> tripFiles, int capWhr) throws IOException {
-	List<SimulationResults> results = new ArrayList<SimulationResults>();
+    private static List<SimulationResults> simulateTrips(final List<Policy> policies,
+	    List<File> tripFiles, final int capWhr) throws IOException {
+	final List<SimulationResults> results = new ArrayList<SimulationResults>();
 	for (Policy p : policies) {
 	    results.add(new SimulationResults(p.getName()));
 	}
-	int count = 0;
-	List<Trip> tripsToTest = new ArrayList<Trip>();
-	for (File tripFile : tripFiles) {
-	    tripsToTest.addAll(parseTrips(tripFile));
-	}	
-	for (int i = 0; i < policies.size(); i++) {	    
-	    for (Trip t : tripsToTest) {
-		if(t.getPoints().size() > 3600) continue;
-		System.out.println("Trip "+t.getPoints().size()+"points.");		
-		try {
-		    double tripID = t.hashCode();
-		    simulateTrip(policies.get(i), t, results.get(i), capWhr);
-		} catch (PowerFlowException e) {
-		    e.printStackTrace();
+	//trips are simulated by every policy as they are parsed, rather
+	//than all parsed first, so memory does not grow with the data set
+	for (int f = 0; f < tripFiles.size(); f++) {
+	    String next = nextDriver(tripFiles, f);
+	    for (Policy p : policies) {
+		//load the next driver while this one's trips run
+		if(next != null && p instanceof DriverPrefetcher) ((DriverPrefetcher)p).prefetch(next);
+	    }
+	    tripCache.readTrips(tripFiles.get(f), civic, new ParallelTripReader.TripHandler() {
+		public void handle(Trip trip) {
+		    if(trip.getPoints().size() > 3600) return;
+		    System.out.println("Trip "+trip.getPoints().size()+"points.");
+		    for (int i = 0; i < policies.size(); i++) {
+			try {
+			    simulateTrip(policies.get(i), trip, results.get(i), capWhr);
+			} catch (PowerFlowException e) {
+			    e.printStackTrace();
+			}
+		    }
 		}
-	    }	    
-	    policies.get(i).clearState();
+	    });
+	}
+	for (Policy p : policies) {
+	    p.clearState();
 	}
 	System.out.println();
 	//System.out.println("Trips tested: "+tripsToTest.size());
 	
 	return results;
     }
+
+    /**
+     * Driver of the first file after file f that is not file f's driver,
+     * null if there is none. Drivers are the files' folder names.
+     */
+    static String nextDriver(List<File> files, int f){
+	String driver = files.get(f).getParentFile().getName();
+	for(int n = f+1; n < files.size(); n++){
+	    String next = files.get(n).getParentFile().getName();
+	    if(!next.equals(driver)) return next;
+	}
+	return null;
+    }
     
     private static void simulateTrip(Policy policy, Trip trip,
 	    SimulationResults results, int capWhr) throws PowerFlowException {
@@ -148,22 +170,6 @@ public class SimulatorKNN {
 	policy.endTrip(trip);
     }
     
-    private static List<Trip> parseTrips(File gpxFile) throws IOException {
-	List<Trip> trips = new ArrayList<Trip>();
-	int i=0;
-	GPXTripParser gpxparser = new GPXTripParser();
-	for (List<PointFeatures> tripPoints : gpxparser.read(gpxFile, civic)) {
-	    String driverName = gpxFile.getParentFile().getName();
-	    String fileName = driverName+gpxFile.getName().substring(0, gpxFile.getName().lastIndexOf('.'))+"_"+i;
-	    TripFeatures tf = new TripFeatures(driverName, fileName, civic, tripPoints
-		    .get(0));
-	    trips.add(new Trip(tf, tripPoints));
-	    gpxparser.clear();
-	    i++;
-	}
-	return trips;
-    }
-    
     public static void writeResults(List<SimulationResults> results){
 	FileWriter fstream;
 	try {
@@ -9,10 +9,8 @@ import org.chargecar.algodev.knn.KnnTableTrainer;
 import org.chargecar.algodev.policies.MDPPolyTrainer;
 import org.chargecar.algodev.policies.MDPTrainer;
 import org.chargecar.prize.battery.SimpleCapacitor;
-import org.chargecar.prize.util.GPXTripParser;
-import org.chargecar.prize.util.PointFeatures;
+import org.chargecar.prize.util.ParallelTripReader;
 import org.chargecar.prize.util.Trip;
-import org.chargecar.prize.util.TripFeatures;
 import org.chargecar.prize.util.Vehicle;
 import org.chargecar.prize.visualization.CSVWriter;
 
@@ -62,35 +60,17 @@ public class SimulatorTrainer {
 	//MDPPolyTrainer policy = new MDPPolyTrainer(optFolder, new SimpleCapacitor(capWhr, 0, systemVoltage), 4, 100);
 	//MDPTrainer policy = new MDPTrainer(optFolder, new SimpleCapacitor(capWhr, 0, systemVoltage), 20);
 	//KnnTableTrainer policy = new KnnTableTrainer(optFolder);
-	int count = 0;
-	for (File tripFile : gpxFiles) {
-	    List<Trip> tripsToTest = parseTrips(tripFile);
-	    for (Trip t : tripsToTest) {
+	final String csvFolder = optFolder;
+	int count = new ParallelTripReader(civic).read(gpxFiles, new ParallelTripReader.TripHandler() {
+	    public void handle(Trip t) {
 		//policy.parseTrip(t);
-		CSVWriter.writeTrip(optFolder+"/"+t.getFeatures().getFileName()+".csv", t);
-		count++;
+		CSVWriter.writeTrip(csvFolder+"/"+t.getFeatures().getFileName()+".csv", t);
 	    }
-	}	
+	});
 	//policy.finishTraining();
 	System.out.println("Complete. Trips trained on: "+count);
     }    
     
-    private static List<Trip> parseTrips(File gpxFile) throws IOException {
-	List<Trip> trips = new ArrayList<Trip>();
-	int i=0;
-	GPXTripParser gpxparser = new GPXTripParser();
-	for (List<PointFeatures> tripPoints : gpxparser.read(gpxFile, civic)) {
-	    String driverName = gpxFile.getParentFile().getName();
-	    String fileName = driverName+gpxFile.getName().substring(0, gpxFile.getName().lastIndexOf('.'))+"_"+i;
-	    TripFeatures tf = new TripFeatures(driverName, fileName, civic, tripPoints
-		    .get(0));
-	    trips.add(new Trip(tf, tripPoints));
-	    gpxparser.clear();
-	    i++;
-	}
-	return trips;
-    }
-    
     static List<File> getGPXFiles(File gpxFolder) {
 	List<File> gpxFiles = new ArrayList<File>();
 	File[] files = gpxFolder.listFiles();
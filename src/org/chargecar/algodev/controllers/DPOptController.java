@@ -25,6 +25,24 @@ public class DPOptController implements Controller {
     
     public double getControl(List<Prediction> predictedDuties,
 	    BatteryModel battery, BatteryModel cap, int periodMS, double powerDemand) {
+	double[] uValues = getControlValues(predictedDuties, cap, powerDemand);
+	double minValue = Double.MAX_VALUE;
+	double control = 0;
+
+	for(int i=0;i<uValues.length;i++){
+	    double value = uValues[i];
+	    if(value < minValue){
+		minValue = value;
+		control = U[i];
+	    }
+	}
+	return control;
+    }
+
+    /**
+     * Expected cost of each control, weighted over the predicted trips.
+     */
+    public double[] getControlValues(List<Prediction> predictedDuties, BatteryModel cap, double powerDemand) {
 	double[] uValues = new double[U.length];
 	double percentCharge = cap.getWattHours() / cap.getMaxWattHours();
 	
@@ -40,10 +58,9 @@ public class DPOptController implements Controller {
 	}
 	
 	for(Prediction p : predictedDuties){
-	    double[][] valueFunction = tripMap.get(p.getTripID());
+	    ValueFunction valueFunction = getValueFunction(p.getTripID());
 	    
-	    //notes, 2D array.  .length gives only first dimension (chargeStates in this case).
-	    int X = valueFunction.length;
+	    int X = valueFunction.getStateCount();
 	    	    
 	    int index = (int)(percentCharge*X);
 	    if(index == X) index = X-1;		    
@@ -58,13 +75,13 @@ public class DPOptController implements Controller {
                 int ceil = (int)Math.ceil(chargeState);
                 ceil = Math.max(Math.min(ceil,X-1),0);
 
-                double fVal = valueFunction[floor][p.getTimeIndex()+1];
+		double fVal = valueFunction.get(floor, p.getTimeIndex()+1);
 
                 if(floor==ceil){
                     value += fVal;
                 }
                 else{
-                    double cVal = valueFunction[ceil][p.getTimeIndex()+1];
+		    double cVal = valueFunction.get(ceil, p.getTimeIndex()+1);
                     value += (fVal + ((cVal - fVal)*(chargeState - floor)/(ceil-floor) ));
                 }
 		
@@ -72,17 +89,15 @@ public class DPOptController implements Controller {
 	    }
 	    
 	}
+	return uValues;
+    }
 	
-	double minValue = Double.MAX_VALUE;
-	double control = 0;
-	
-	for(int i=0;i<uValues.length;i++){
-	    double value = uValues[i];
-	    if(value < minValue){
-		minValue = value;
-		control = U[i];
-	    }
-	}
-	return control;
+    /**
+     * Reads an OptTable's values in their stored encoding instead of
+     * decoding them to a double[][].
+     */
+    private ValueFunction getValueFunction(int tripID){
+	if(tripMap instanceof OptTable) return ((OptTable)tripMap).getValueFunction(tripID);
+	return ValueFunction.of(tripMap.get(tripID));
     }    
 }
@@ -12,6 +12,8 @@ public class DPPolyController implements Controller {
 
     private final int[] U;
     private final Map<Integer, double[][]> tripMap;
+    //the row read from an OptTable, reused from one prediction to the next
+    private double[] row = new double[0];
     
     public DPPolyController(int[] controls, Map<Integer, double[][]> tripMap){
 	this.U = controls;
@@ -36,11 +38,11 @@ public class DPPolyController implements Controller {
 	}
 	
 	for(Prediction p : predictedDuties){
-	    double[][] coefficients = tripMap.get(p.getTripID());
+	    double[] coefficients = getCoefficients(p.getTripID(), p.getTimeIndex()+1);
 	    
 	    for(int i=0;i<U.length;i++){
 		//doesnt know lambda for first step... OK
-		double value = cResults[i].cost + MDPPolynomial.calculateValue(coefficients[p.getTimeIndex()+1], cResults[i].pCharge);		
+		double value = cResults[i].cost + MDPPolynomial.calculateValue(coefficients, cResults[i].pCharge);		
 		uValues[i] += p.getWeight()*value;
 	    }
 	    
@@ -59,6 +61,20 @@ public class DPPolyController implements Controller {
 	return control;
     }
 
+    /**
+     * The trip's coefficients at a time step. An OptTable's are read in
+     * place into a buffer valid until the next call, rather than the
+     * whole trip decoded by get().
+     */
+    private double[] getCoefficients(int tripID, int timeIndex){
+	if(!(tripMap instanceof OptTable)) return tripMap.get(tripID)[timeIndex];
+	ValueFunction values = ((OptTable)tripMap).getValueFunction(tripID);
+	int O = values.getLength(timeIndex);
+	if(row.length != O) row = new double[O];
+	for(int o=0;o<O;o++) row[o] = values.get(timeIndex, o);
+	return row;
+    }
+
     @Override
     public void addTrip(Trip t) {
 	// TODO Auto-generated method stub
@@ -26,7 +26,19 @@ public class MDPValueGraph {
     }
     
     public double[][] getValues(List<PointFeatures> points) {
-	int T = points.size() + 1; // how many Time States we have
+	double[] powers = new double[points.size()];
+	for (int t = 0; t < powers.length; t++) {
+	    powers[t] = points.get(t).getPowerDemand();
+	}
+	return getValues(powers);
+    }
+
+    /**
+     * Values from the trip's power demands alone, e.g.
+     * ColumnarTrip.getPowerDemands().
+     */
+    public double[][] getValues(double[] powers) {
+	int T = powers.length + 1; // how many Time States we have
 	
 	// look for null in case data overlaps new trip
 	// there will be a null in the power set to signify a trip
@@ -56,7 +68,7 @@ public class MDPValueGraph {
 	// TODO change to A*?
 	for (int t = T - 2; t >= 0; t--) {
 	    double power = 0;
-	    power = points.get(t).getPowerDemand();
+	    power = powers[t];
 	    for (int x = 0; x < X; x++) {
 		BatteryModel state = xstates[x];
 		double minValue = Double.MAX_VALUE;
@@ -0,0 +1,465 @@
+package org.chargecar.algodev.controllers;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.chargecar.algodev.knn.LittleEndianFile;
+
+/**
+ * A driver's .opt file, the tripID to double[][] map written by MDPTrainer
+ * and MDPPolyTrainer, as a read only view of a memory mapped file. The file
+ * is little endian: magic "OPTT", version, trip count and encoding, a
+ * directory of tripIDs sorted ascending with the offset of each trip's
+ * block, then the blocks, each the block's ValueFunction encoding, the row
+ * count, the row lengths and the encoded values. Version 1 files have no
+ * encodings and hold doubles.
+ *
+ * Opening only reads the directory. getValueFunction() returns a view that
+ * reads a trip's values in place from the mapping, in their file encoding,
+ * so only the pages of the trips the predictor actually returns are read
+ * and only where each row starts is kept on the heap. get() decodes a trip
+ * to a new double[][] on every call. Trips added with put(),
+ * e.g. by DPOptController.addTrip, are kept on the heap in front of the
+ * file. Maps serialized by older trainers still open through open().
+ */
+public class OptTable extends AbstractMap<Integer, double[][]> {
+    //"OPTT" read as a little endian int
+    static final int MAGIC = 0x5454504F;
+    static final int VERSION = 2;
+    //first bytes of a Java serialization stream
+    private static final int SERIAL_MAGIC = 0xACED;
+
+    private final ByteBuffer mapped;
+    private final int version;
+    private final int encoding;
+    private final int[] tripIDs;
+    private final long[] offsets;
+    private final Map<Integer, double[][]> added = new HashMap<Integer, double[][]>();
+    //views made so far, by directory index
+    private final ValueFunction[] views;
+
+    private OptTable(ByteBuffer mapped) throws IOException {
+	this.mapped = mapped;
+	if(mapped.getInt() != MAGIC) throw new IOException("Not an opt table");
+	version = mapped.getInt();
+	if(version < 1 || version > VERSION) throw new IOException("Unsupported opt table version "+version);
+	int trips = mapped.getInt();
+	encoding = mapped.getInt();
+	tripIDs = LittleEndianFile.getInts(mapped, trips);
+	if(trips % 2 != 0) mapped.getInt();
+	offsets = new long[trips];
+	mapped.asLongBuffer().get(offsets);
+	views = new ValueFunction[trips];
+    }
+
+    /**
+     * Opens an .opt file in either format.
+     */
+    public static Map<Integer, double[][]> open(File file) throws IOException {
+	if(isSerialized(file)) return readSerialized(file);
+	return new OptTable(LittleEndianFile.map(file));
+    }
+
+    /**
+     * True when the file was written with ObjectOutputStream by an older
+     * trainer.
+     */
+    public static boolean isSerialized(File file) throws IOException {
+	DataInputStream in = new DataInputStream(new FileInputStream(file));
+	try {
+	    return in.readUnsignedShort() == SERIAL_MAGIC;
+	} finally {
+	    in.close();
+	}
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Integer, double[][]> readSerialized(File file) throws IOException {
+	ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
+	try {
+	    return (Map<Integer, double[][]>)ois.readObject();
+	} catch (ClassNotFoundException e) {
+	    throw new IOException("Could not read serialized opt table "+file, e);
+	} finally {
+	    ois.close();
+	}
+    }
+
+    public static void write(File file, Map<Integer, double[][]> tripMap) throws IOException {
+	write(file, tripMap, ValueFunction.DOUBLE);
+    }
+
+    /**
+     * @param encoding ValueFunction.DOUBLE, FLOAT or SCALED16
+     */
+    public static void write(File file, Map<Integer, double[][]> tripMap, int encoding) throws IOException {
+	int trips = tripMap.size();
+	int[] ids = new int[trips];
+	int t = 0;
+	for(Integer tripID : tripMap.keySet()) ids[t++] = tripID;
+	Arrays.sort(ids);
+
+	//sized from the values, each trip is only encoded as it is written
+	long[] offsets = new long[trips];
+	long offset = 16 + 4*(trips + trips%2) + 8*trips;
+	for(int i=0;i<trips;i++){
+	    offsets[i] = offset;
+	    offset += blockBytes(tripMap.get(ids[i]), encoding);
+	}
+	//open() maps the file in one buffer
+	if(offset > Integer.MAX_VALUE){
+	    throw new IOException("Table of "+trips+" trips would take "+offset+" bytes, over the "
+		    +Integer.MAX_VALUE+" a mapped .opt file can hold; write it as FLOAT or SCALED16");
+	}
+
+	LittleEndianFile out = new LittleEndianFile(file);
+	try {
+	    out.putInt(MAGIC);
+	    out.putInt(VERSION);
+	    out.putInt(trips);
+	    out.putInt(encoding);
+	    out.putInts(ids);
+	    out.align();
+	    for(long o : offsets) out.putLong(o);
+	    for(int i=0;i<trips;i++){
+		writeBlock(out, ValueFunction.encode(tripMap.get(ids[i]), encoding));
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    private static void writeBlock(LittleEndianFile out, ValueFunction values) throws IOException {
+	out.putInt(values.getEncoding());
+	out.putInt(values.getStateCount());
+	for(int x=0;x<values.getStateCount();x++) out.putInt(values.getLength(x));
+	out.align();
+	if(values instanceof ValueFunction.DoubleValues){
+	    for(double[] row : ((ValueFunction.DoubleValues)values).values) out.putDoubles(row);
+	}
+	else if(values instanceof ValueFunction.FloatValues){
+	    for(float[] row : ((ValueFunction.FloatValues)values).values) out.putFloats(row);
+	}
+	else{
+	    ValueFunction.ScaledValues scaled = (ValueFunction.ScaledValues)values;
+	    out.putDoubles(scaled.offsets);
+	    out.putFloats(scaled.steps);
+	    out.align();
+	    for(short[] row : scaled.counts) out.putShorts(row);
+	}
+	out.align();
+    }
+
+    //bytes writeBlock writes for the values in this encoding
+    private static long blockBytes(double[][] values, int encoding){
+	long bytes = align(8 + 4*values.length);
+	long cells = 0;
+	for(double[] row : values) cells += row.length;
+	switch(ValueFunction.getEncoding(values, encoding)){
+	case ValueFunction.DOUBLE:
+	    return bytes + 8*cells;
+	case ValueFunction.FLOAT:
+	    return bytes + align(4*cells);
+	default:
+	    int T = values.length == 0 ? 0 : values[0].length;
+	    return bytes + 8*T + align(4*T) + align(2*cells);
+	}
+    }
+
+    private static long align(long bytes){
+	return (bytes + 7) & ~7;
+    }
+
+    /**
+     * Rewrites an .opt file of either format in the indexed format with
+     * the given encoding. The source and destination may be the same file.
+     */
+    public static void convert(File source, File destination, int encoding) throws IOException {
+	Map<Integer, double[][]> tripMap = open(source);
+	if(tripMap instanceof OptTable){
+	    //read everything before the destination is truncated
+	    tripMap = new HashMap<Integer, double[][]>(tripMap);
+	}
+	write(destination, tripMap, encoding);
+    }
+
+    /**
+     * Encoding the file was written with, blocks SCALED16 could not hold
+     * are DOUBLE.
+     */
+    public int getEncoding(){
+	return encoding;
+    }
+
+    /**
+     * Approximate heap bytes: the directory, the views made so far and the
+     * trips added with put(). Values read from the file stay in the mapping.
+     */
+    public synchronized long getMemoryBytes(){
+	long bytes = 16L*tripIDs.length;
+	for(ValueFunction values : views){
+	    if(values != null) bytes += values.getMemoryBytes();
+	}
+	for(double[][] values : added.values()) bytes += ValueFunction.of(values).getMemoryBytes();
+	return bytes;
+    }
+
+    /**
+     * A trip's values as a new double[][], the array put() was given for
+     * trips added to the table. This decodes the whole trip, so it is for
+     * cold paths; per step lookups should use getValueFunction().
+     */
+    @Override
+    public synchronized double[][] get(Object key){
+	if(!(key instanceof Integer)) return null;
+	double[][] addedValues = added.get(key);
+	if(addedValues != null) return addedValues;
+	ValueFunction values = getValueFunction((Integer)key);
+	return values == null ? null : values.toArray();
+    }
+
+    /**
+     * A trip's values as stored in the file, read in place without
+     * decoding them to doubles, null if the trip is not in the table.
+     */
+    public synchronized ValueFunction getValueFunction(int tripID){
+	double[][] addedValues = added.get(tripID);
+	if(addedValues != null) return ValueFunction.of(addedValues);
+	int i = Arrays.binarySearch(tripIDs, tripID);
+	if(i < 0) return null;
+	if(views[i] == null) views[i] = view(i);
+	return views[i];
+    }
+
+    private ValueFunction view(int i){
+	//absolute reads only, the mapping's position is shared
+	int position = (int)offsets[i];
+	int blockEncoding = ValueFunction.DOUBLE;
+	if(version > 1){
+	    blockEncoding = mapped.getInt(position);
+	    position += 4;
+	}
+	int rows = mapped.getInt(position);
+	position += 4;
+	int[] lengths = new int[rows];
+	for(int r=0;r<rows;r++) lengths[r] = mapped.getInt(position + 4*r);
+	int data = (int)align(position + 4*rows);
+	switch(blockEncoding){
+	case ValueFunction.DOUBLE:
+	    return new MappedRows(mapped, ValueFunction.DOUBLE, lengths, data);
+	case ValueFunction.FLOAT:
+	    return new MappedRows(mapped, ValueFunction.FLOAT, lengths, data);
+	case ValueFunction.SCALED16:
+	    int T = rows == 0 ? 0 : lengths[0];
+	    int steps = data + 8*T;
+	    return new MappedScaled(mapped, rows, T, data, steps, (int)align(steps + 4*T));
+	default:
+	    throw new IllegalStateException("Unknown value encoding "+blockEncoding+" for trip "+tripIDs[i]);
+	}
+    }
+
+    /**
+     * DOUBLE or FLOAT rows read from the mapping.
+     */
+    private static class MappedRows extends ValueFunction {
+	private final ByteBuffer mapped;
+	private final int encoding;
+	private final int[] lengths;
+	private final int[] rowStarts;
+
+	MappedRows(ByteBuffer mapped, int encoding, int[] lengths, int data){
+	    this.mapped = mapped;
+	    this.encoding = encoding;
+	    this.lengths = lengths;
+	    this.rowStarts = new int[lengths.length];
+	    int width = encoding == ValueFunction.DOUBLE ? 8 : 4;
+	    for(int x=0;x<lengths.length;x++){
+		rowStarts[x] = data;
+		data += width*lengths[x];
+	    }
+	}
+
+	public int getStateCount(){
+	    return lengths.length;
+	}
+
+	public int getLength(int x){
+	    return lengths[x];
+	}
+
+	public double get(int x, int t){
+	    if(t < 0 || t >= lengths[x]) throw new ArrayIndexOutOfBoundsException(t);
+	    if(encoding == ValueFunction.DOUBLE) return mapped.getDouble(rowStarts[x] + 8*t);
+	    return mapped.getFloat(rowStarts[x] + 4*t);
+	}
+
+	public int getEncoding(){
+	    return encoding;
+	}
+
+	public long getMemoryBytes(){
+	    return 32 + 2*(16 + 4L*lengths.length);
+	}
+    }
+
+    /**
+     * SCALED16 values read from the mapping.
+     */
+    private static class MappedScaled extends ValueFunction {
+	private final ByteBuffer mapped;
+	private final int rows;
+	private final int T;
+	private final int offsetsAt;
+	private final int stepsAt;
+	private final int countsAt;
+
+	MappedScaled(ByteBuffer mapped, int rows, int T, int offsetsAt, int stepsAt, int countsAt){
+	    this.mapped = mapped;
+	    this.rows = rows;
+	    this.T = T;
+	    this.offsetsAt = offsetsAt;
+	    this.stepsAt = stepsAt;
+	    this.countsAt = countsAt;
+	}
+
+	public int getStateCount(){
+	    return rows;
+	}
+
+	public int getLength(int x){
+	    return T;
+	}
+
+	public double get(int x, int t){
+	    if(x < 0 || x >= rows) throw new ArrayIndexOutOfBoundsException(x);
+	    if(t < 0 || t >= T) throw new ArrayIndexOutOfBoundsException(t);
+	    int count = mapped.getShort(countsAt + 2*(x*T + t)) & 0xFFFF;
+	    return mapped.getDouble(offsetsAt + 8*t) + count * (double)mapped.getFloat(stepsAt + 4*t);
+	}
+
+	public int getEncoding(){
+	    return ValueFunction.SCALED16;
+	}
+
+	public long getMemoryBytes(){
+	    return 40;
+	}
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key){
+	if(!(key instanceof Integer)) return false;
+	return added.containsKey(key) || Arrays.binarySearch(tripIDs, (Integer)key) >= 0;
+    }
+
+    @Override
+    public synchronized double[][] put(Integer tripID, double[][] values){
+	double[][] previous = get(tripID);
+	added.put(tripID, values);
+	return previous;
+    }
+
+    @Override
+    public synchronized int size(){
+	int size = tripIDs.length;
+	for(Integer tripID : added.keySet()){
+	    if(Arrays.binarySearch(tripIDs, tripID) < 0) size++;
+	}
+	return size;
+    }
+
+    /**
+     * Entries decode their trip on getValue().
+     */
+    @Override
+    public Set<Map.Entry<Integer, double[][]>> entrySet(){
+	return new AbstractSet<Map.Entry<Integer, double[][]>>(){
+	    @Override
+	    public int size(){
+		return OptTable.this.size();
+	    }
+
+	    @Override
+	    public Iterator<Map.Entry<Integer, double[][]>> iterator(){
+		final Iterator<Integer> addedIDs = new HashMap<Integer, double[][]>(added).keySet().iterator();
+		return new Iterator<Map.Entry<Integer, double[][]>>(){
+		    private int next = 0;
+		    private Integer nextAdded = advanceAdded();
+
+		    private Integer advanceAdded(){
+			while(addedIDs.hasNext()){
+			    Integer tripID = addedIDs.next();
+			    if(Arrays.binarySearch(tripIDs, tripID) < 0) return tripID;
+			}
+			return null;
+		    }
+
+		    public boolean hasNext(){
+			return next < tripIDs.length || nextAdded != null;
+		    }
+
+		    public Map.Entry<Integer, double[][]> next(){
+			final Integer tripID;
+			if(next < tripIDs.length){
+			    tripID = tripIDs[next++];
+			}
+			else if(nextAdded != null){
+			    tripID = nextAdded;
+			    nextAdded = advanceAdded();
+			}
+			else throw new NoSuchElementException();
+			return new AbstractMap.SimpleEntry<Integer, double[][]>(tripID, null){
+			    private static final long serialVersionUID = 1L;
+			    @Override
+			    public double[][] getValue(){
+				return get(tripID);
+			    }
+			};
+		    }
+
+		    public void remove(){
+			throw new UnsupportedOperationException("opt tables are read only");
+		    }
+		};
+	    }
+	};
+    }
+
+    /**
+     * Converts .opt files to the indexed format in place, serialized ones
+     * only unless an encoding (0 double, 1 float, 2 scaled 16 bit) is given.
+     *
+     * e.g. java OptTable "C:\ccpdata\opt" 2
+     */
+    public static void main(String[] args) throws IOException {
+	if (args == null || args.length < 1) {
+	    System.err.println("ERROR: Provide an .opt file or folder");
+	    System.exit(1);
+	}
+	File path = new File(args[0]);
+	int encoding = args.length > 1 ? Integer.parseInt(args[1]) : ValueFunction.DOUBLE;
+	File[] files = path.isDirectory() ? path.listFiles() : new File[]{path};
+	for(File file : files){
+	    if(!file.isFile() || !file.getName().endsWith(".opt")) continue;
+	    if(args.length < 2 && !isSerialized(file)){
+		System.out.println(file.getName()+" is already indexed.");
+		continue;
+	    }
+	    long start = System.currentTimeMillis();
+	    convert(file, file, encoding);
+	    System.out.println("Converted "+file.getName()+" in "+(System.currentTimeMillis()-start)+"ms");
+	}
+    }
+}
@@ -0,0 +1,202 @@
+package org.chargecar.algodev.controllers;
+
+/**
+ * A trip's value function V[x][t] from MDPValueGraph.getValues, X charge
+ * states by T time steps, in one of the OptTable encodings:
+ *
+ * DOUBLE keeps the values as they are.
+ * FLOAT rounds them to float, half the memory.
+ * SCALED16 stores, for every time step, the smallest value over the charge
+ * states and a step, and each value as an unsigned 16 bit count of steps
+ * above it. Controls are picked by comparing values of one time step, so
+ * a scale per step keeps those differences much finer than one scale for
+ * the whole trip would. Roughly a third of the memory of DOUBLE.
+ */
+public abstract class ValueFunction {
+    public static final int DOUBLE = 0;
+    public static final int FLOAT = 1;
+    public static final int SCALED16 = 2;
+
+    private static final int LEVELS = 0xFFFF;
+
+    public abstract int getStateCount();
+
+    public abstract int getLength(int x);
+
+    public abstract double get(int x, int t);
+
+    public abstract int getEncoding();
+
+    /**
+     * Approximate heap bytes of the stored values, only the row layout for
+     * values read in place from an OptTable file.
+     */
+    public abstract long getMemoryBytes();
+
+    public double[][] toArray(){
+	double[][] values = new double[getStateCount()][];
+	for(int x=0;x<values.length;x++){
+	    values[x] = new double[getLength(x)];
+	    for(int t=0;t<values[x].length;t++){
+		values[x][t] = get(x, t);
+	    }
+	}
+	return values;
+    }
+
+    public static ValueFunction of(double[][] values){
+	return values == null ? null : new DoubleValues(values);
+    }
+
+    /**
+     * The encoding encode() will use for the values.
+     */
+    static int getEncoding(double[][] values, int encoding){
+	if(encoding == SCALED16 && !canScale(values)) return DOUBLE;
+	return encoding;
+    }
+
+    /**
+     * The values in the given encoding. Tables SCALED16 cannot hold, ragged
+     * or with values that are not finite, are kept as DOUBLE.
+     */
+    public static ValueFunction encode(double[][] values, int encoding){
+	switch(getEncoding(values, encoding)){
+	case DOUBLE:
+	    return new DoubleValues(values);
+	case FLOAT:
+	    float[][] floats = new float[values.length][];
+	    for(int x=0;x<values.length;x++){
+		floats[x] = new float[values[x].length];
+		for(int t=0;t<floats[x].length;t++) floats[x][t] = (float)values[x][t];
+	    }
+	    return new FloatValues(floats);
+	case SCALED16:
+	    int X = values.length;
+	    int T = X == 0 ? 0 : values[0].length;
+	    double[] offsets = new double[T];
+	    float[] steps = new float[T];
+	    short[][] counts = new short[X][T];
+	    for(int t=0;t<T;t++){
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for(int x=0;x<X;x++){
+		    min = Math.min(min, values[x][t]);
+		    max = Math.max(max, values[x][t]);
+		}
+		offsets[t] = min;
+		steps[t] = (float)((max - min) / LEVELS);
+		for(int x=0;x<X;x++){
+		    long count = steps[t] == 0 ? 0 : Math.round((values[x][t] - min) / steps[t]);
+		    counts[x][t] = (short)Math.min(count, LEVELS);
+		}
+	    }
+	    return new ScaledValues(offsets, steps, counts);
+	default:
+	    throw new IllegalArgumentException("Unknown value encoding "+encoding);
+	}
+    }
+
+    private static boolean canScale(double[][] values){
+	for(double[] row : values){
+	    if(row.length != values[0].length) return false;
+	    for(double v : row){
+		if(Double.isNaN(v) || Double.isInfinite(v)) return false;
+	    }
+	}
+	return true;
+    }
+
+    static class DoubleValues extends ValueFunction {
+	final double[][] values;
+
+	DoubleValues(double[][] values){
+	    this.values = values;
+	}
+
+	public int getStateCount(){
+	    return values.length;
+	}
+
+	public int getLength(int x){
+	    return values[x].length;
+	}
+
+	public double get(int x, int t){
+	    return values[x][t];
+	}
+
+	public int getEncoding(){
+	    return DOUBLE;
+	}
+
+	public long getMemoryBytes(){
+	    long bytes = 16 + 4*values.length;
+	    for(double[] row : values) bytes += 16 + 8*row.length;
+	    return bytes;
+	}
+    }
+
+    static class FloatValues extends ValueFunction {
+	final float[][] values;
+
+	FloatValues(float[][] values){
+	    this.values = values;
+	}
+
+	public int getStateCount(){
+	    return values.length;
+	}
+
+	public int getLength(int x){
+	    return values[x].length;
+	}
+
+	public double get(int x, int t){
+	    return values[x][t];
+	}
+
+	public int getEncoding(){
+	    return FLOAT;
+	}
+
+	public long getMemoryBytes(){
+	    long bytes = 16 + 4*values.length;
+	    for(float[] row : values) bytes += 16 + 4*row.length;
+	    return bytes;
+	}
+    }
+
+    static class ScaledValues extends ValueFunction {
+	final double[] offsets;
+	final float[] steps;
+	final short[][] counts;
+
+	ScaledValues(double[] offsets, float[] steps, short[][] counts){
+	    this.offsets = offsets;
+	    this.steps = steps;
+	    this.counts = counts;
+	}
+
+	public int getStateCount(){
+	    return counts.length;
+	}
+
+	public int getLength(int x){
+	    return offsets.length;
+	}
+
+	public double get(int x, int t){
+	    return offsets[t] + (counts[x][t] & 0xFFFF) * (double)steps[t];
+	}
+
+	public int getEncoding(){
+	    return SCALED16;
+	}
+
+	public long getMemoryBytes(){
+	    long bytes = 16 + 8*offsets.length + 16 + 4*steps.length + 16 + 4*counts.length;
+	    for(short[] row : counts) bytes += 16 + 2*row.length;
+	    return bytes;
+	}
+    }
+}
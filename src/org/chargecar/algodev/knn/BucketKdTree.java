@@ -0,0 +1,241 @@
+package org.chargecar.algodev.knn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.chargecar.algodev.predictors.Prediction;
+import org.chargecar.prize.util.PointFeatures;
+
+/**
+ * Static k-d tree whose leaves hold buckets of up to leafSize points. The
+ * layout is implicit like FlatKdTree's, but a range [lo,hi) of more than
+ * leafSize points is split into [lo,mid) and [mid,hi) and only keeps the
+ * split (the median point's vector), so the tree is log2(n/leafSize) deep
+ * instead of log2(n). Each bucket stores its points column-wise at
+ * coords[lo*dimensions] and is scored with one call to
+ * KdTreeFeatureSet.distances(). Like FlatKdTree it is read only after
+ * construction and can be shared by searching threads.
+ */
+public class BucketKdTree implements KnnIndex {
+    public static final int DEFAULT_LEAF_SIZE = 32;
+    private final KdTreeFeatureSet featureSet;
+    private final int dimensions;
+    private final int splitCount;
+    private final int size;
+    private final int leafSize;
+    //bucket over [lo,hi): axis a of point lo+j at coords[lo*dimensions + a*(hi-lo) + j]
+    private final double[] coords;
+    private final int[] tripIDs;
+    private final int[] timeIndices;
+    //split vectors of the internal nodes in preorder, left child of node n is n+1
+    private final double[] splits;
+    private final int[] rightChild;
+    private int nodeCount;
+
+    public BucketKdTree(List<KnnPoint> points, KdTreeFeatureSet featureSet){
+	this(points, featureSet, DEFAULT_LEAF_SIZE, false);
+    }
+
+    public BucketKdTree(List<KnnPoint> points, KdTreeFeatureSet featureSet, int leafSize){
+	this(points, featureSet, leafSize, false);
+    }
+
+    /**
+     * @param leafSize largest number of points in a bucket
+     * @param parallelBuild build subtrees as fork/join tasks, same layout as
+     * the serial build
+     */
+    public BucketKdTree(List<KnnPoint> points, KdTreeFeatureSet featureSet, int leafSize, boolean parallelBuild){
+	if(leafSize < 1) throw new IllegalArgumentException("leafSize must be positive: "+leafSize);
+	this.featureSet = featureSet;
+	this.dimensions = featureSet.getDimensionCount();
+	this.splitCount = featureSet.getFeatureCount();
+	this.size = points == null ? 0 : points.size();
+	this.leafSize = leafSize;
+
+	double[] rawCoords = new double[size*dimensions];
+	int[] perm = new int[size];
+	for(int i=0;i<size;i++){
+	    double[] vector = featureSet.getVector(points.get(i).getFeatures());
+	    System.arraycopy(vector, 0, rawCoords, i*dimensions, dimensions);
+	    perm[i] = i;
+	}
+	KdTreeBuilder.build(rawCoords, dimensions, splitCount, perm, leafSize, parallelBuild);
+
+	tripIDs = new int[size];
+	timeIndices = new int[size];
+	for(int i=0;i<size;i++){
+	    KnnPoint kp = points.get(perm[i]);
+	    tripIDs[i] = kp.getTripID();
+	    timeIndices[i] = kp.getTimeIndex();
+	}
+	int internalNodes = countInternal(size);
+	splits = new double[internalNodes*dimensions];
+	rightChild = new int[internalNodes];
+	coords = new double[size*dimensions];
+	layout(rawCoords, perm, 0, size, 0);
+    }
+
+    /**
+     * A tree laid out by an earlier build, see write().
+     */
+    private BucketKdTree(KdTreeFeatureSet featureSet, int leafSize, double[] coords, int[] tripIDs, int[] timeIndices, double[] splits, int[] rightChild){
+	this.featureSet = featureSet;
+	this.dimensions = featureSet.getDimensionCount();
+	this.splitCount = featureSet.getFeatureCount();
+	this.size = tripIDs.length;
+	this.leafSize = leafSize;
+	this.coords = coords;
+	this.tripIDs = tripIDs;
+	this.timeIndices = timeIndices;
+	this.splits = splits;
+	this.rightChild = rightChild;
+	this.nodeCount = rightChild.length;
+    }
+
+    /**
+     * Writes the built arrays, 8 byte aligned, for read() to restore.
+     */
+    void write(LittleEndianFile out) throws IOException {
+	out.putInt(size);
+	out.putInt(nodeCount);
+	out.putDoubles(coords);
+	out.putDoubles(splits);
+	out.putInts(tripIDs);
+	out.putInts(timeIndices);
+	out.putInts(rightChild);
+	out.align();
+    }
+
+    static BucketKdTree read(ByteBuffer in, KdTreeFeatureSet featureSet, int leafSize){
+	int dimensions = featureSet.getDimensionCount();
+	int size = in.getInt();
+	int nodeCount = in.getInt();
+	double[] coords = LittleEndianFile.getDoubles(in, size*dimensions);
+	double[] splits = LittleEndianFile.getDoubles(in, nodeCount*dimensions);
+	int[] tripIDs = LittleEndianFile.getInts(in, size);
+	int[] timeIndices = LittleEndianFile.getInts(in, size);
+	int[] rightChild = LittleEndianFile.getInts(in, nodeCount);
+	in.position((in.position() + 7) & ~7);
+	return new BucketKdTree(featureSet, leafSize, coords, tripIDs, timeIndices, splits, rightChild);
+    }
+
+    private int countInternal(int n){
+	if(n <= leafSize) return 0;
+	int half = n >>> 1;
+	return 1 + countInternal(half) + countInternal(n - half);
+    }
+
+    private void layout(double[] rawCoords, int[] perm, int lo, int hi, int depth){
+	int count = hi - lo;
+	if(count <= leafSize){
+	    for(int j=0;j<count;j++){
+		int from = perm[lo+j]*dimensions;
+		for(int a=0;a<dimensions;a++){
+		    coords[lo*dimensions + a*count + j] = rawCoords[from+a];
+		}
+	    }
+	    return;
+	}
+	int node = nodeCount++;
+	int mid = (lo+hi) >>> 1;
+	//building the right half moved the median, it is the smallest value there
+	int axis = depth % splitCount;
+	int median = mid;
+	for(int i=mid+1;i<hi;i++){
+	    if(rawCoords[perm[i]*dimensions+axis] < rawCoords[perm[median]*dimensions+axis]) median = i;
+	}
+	System.arraycopy(rawCoords, perm[median]*dimensions, splits, node*dimensions, dimensions);
+	layout(rawCoords, perm, lo, mid, depth+1);
+	rightChild[node] = nodeCount;
+	layout(rawCoords, perm, mid, hi, depth+1);
+    }
+
+    /**
+     * Approximate heap bytes of the tree's arrays.
+     */
+    public long getMemoryBytes(){
+	return 8L*(coords.length + splits.length) + 4L*(tripIDs.length + timeIndices.length + rightChild.length) + 5*16;
+    }
+
+    public int getLeafSize(){
+	return leafSize;
+    }
+
+    public int countNodes(){
+	return size;
+    }
+
+    public Prediction getNeighbor(PointFeatures searchPoint){
+	KnnQuery query = KnnQuery.forCurrentThread();
+	if(searchNeighbors(searchPoint, 1, query) == 0) return null;
+	return query.getPrediction(0);
+    }
+
+    public List<Prediction> getNeighbors(PointFeatures searchPoint, int k, List<Prediction> previousNeighbors, boolean trained){
+	KnnQuery query = KnnQuery.forCurrentThread();
+	getNeighbors(searchPoint, k, trained, query);
+	return query.getPredictions();
+    }
+
+    public int getNeighbors(PointFeatures searchPoint, int k, boolean trained, KnnQuery query){
+	searchNeighbors(searchPoint, k+1, query);
+	query.trim(trained);
+	return query.size();
+    }
+
+    public int searchNeighbors(PointFeatures searchPoint, int k, KnnQuery query){
+	query.reset(k, splitCount);
+	if(size > 0){
+	    double[] vector = query.getVector(dimensions);
+	    featureSet.getVector(searchPoint, vector);
+	    search(vector, query);
+	}
+	query.finish();
+	return query.size();
+    }
+
+    /**
+     * Adds this tree's candidates to a query that is already under way, so
+     * several trees can be searched with one bound.
+     */
+    void search(double[] vector, KnnQuery query){
+	if(size > 0)
+	    searchTree(0, 0, size, 0, vector, query, query.getDistSoFar(), query.getScratch(leafSize));
+    }
+
+    private void searchTree(int node, int lo, int hi, int depth, double[] point, KnnQuery best, double[] distSoFar, double[] dists){
+	int count = hi - lo;
+	if(count <= leafSize){
+	    best.visit();
+	    featureSet.distances(point, coords, lo*dimensions, count, count, dists);
+	    for(int j=0;j<count;j++){
+		if(dists[j] < best.bound())
+		    best.offer(dists[j], tripIDs[lo+j], timeIndices[lo+j]);
+	    }
+	    return;
+	}
+	int mid = (lo+hi) >>> 1;
+	int axis = depth % splitCount;
+	int offset = node*dimensions;
+
+	boolean leftBranch = point[axis] < splits[offset+axis];
+	if(leftBranch) searchTree(node+1, lo, mid, depth+1, point, best, distSoFar, dists);
+	else searchTree(rightChild[node], mid, hi, depth+1, point, best, distSoFar, dists);
+
+	//children restore distSoFar on the way out, so only this axis needs saving
+	double previous = distSoFar[axis];
+	distSoFar[axis] = featureSet.axialDistance(point, splits, offset, axis);
+
+	double distToSpace = 0;
+	for(int i=0;i<splitCount;i++)
+	    distToSpace+=distSoFar[i];
+
+	if(distToSpace <= best.farBound() && best.hasBudget()){
+	    if(leftBranch) searchTree(rightChild[node], mid, hi, depth+1, point, best, distSoFar, dists);
+	    else searchTree(node+1, lo, mid, depth+1, point, best, distSoFar, dists);
+	}
+	distSoFar[axis] = previous;
+    }
+}
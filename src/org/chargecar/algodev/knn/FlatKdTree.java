@@ -0,0 +1,122 @@
+package org.chargecar.algodev.knn;
+
+import java.util.List;
+
+import org.chargecar.algodev.predictors.Prediction;
+import org.chargecar.prize.util.PointFeatures;
+
+/**
+ * Static k-d tree stored in flat arrays instead of a KdTreeNode per point.
+ * Node i keeps its feature vector at coords[i*dimensions], the tree layout
+ * is implicit: the subtree over [lo,hi) has its root at (lo+hi)/2, left
+ * subtree [lo,mid) and right subtree [mid+1,hi), split on depth % featureCount
+ * exactly like KdTree.buildTree.  Points cannot be added after construction
+ * and the tree is never written by searches, so it can be shared by any
+ * number of searching threads.
+ */
+public class FlatKdTree implements KnnIndex {
+    private final KdTreeFeatureSet featureSet;
+    private final int dimensions;
+    private final int splitCount;
+    private final int size;
+    private final double[] coords;
+    private final int[] tripIDs;
+    private final int[] timeIndices;
+
+    public FlatKdTree(List<KnnPoint> points, KdTreeFeatureSet featureSet){
+	this(points, featureSet, false);
+    }
+
+    /**
+     * @param parallelBuild build subtrees as fork/join tasks, same layout as
+     * the serial build
+     */
+    public FlatKdTree(List<KnnPoint> points, KdTreeFeatureSet featureSet, boolean parallelBuild){
+	this.featureSet = featureSet;
+	this.dimensions = featureSet.getDimensionCount();
+	this.splitCount = featureSet.getFeatureCount();
+	this.size = points == null ? 0 : points.size();
+
+	double[] rawCoords = new double[size*dimensions];
+	int[] perm = new int[size];
+	for(int i=0;i<size;i++){
+	    double[] vector = featureSet.getVector(points.get(i).getFeatures());
+	    System.arraycopy(vector, 0, rawCoords, i*dimensions, dimensions);
+	    perm[i] = i;
+	}
+	KdTreeBuilder.build(rawCoords, dimensions, splitCount, perm, parallelBuild);
+
+	coords = new double[size*dimensions];
+	tripIDs = new int[size];
+	timeIndices = new int[size];
+	for(int i=0;i<size;i++){
+	    KnnPoint kp = points.get(perm[i]);
+	    System.arraycopy(rawCoords, perm[i]*dimensions, coords, i*dimensions, dimensions);
+	    tripIDs[i] = kp.getTripID();
+	    timeIndices[i] = kp.getTimeIndex();
+	}
+    }
+
+    public int countNodes(){
+	return size;
+    }
+
+    public Prediction getNeighbor(PointFeatures searchPoint){
+	KnnQuery query = KnnQuery.forCurrentThread();
+	if(searchNeighbors(searchPoint, 1, query) == 0) return null;
+	return query.getPrediction(0);
+    }
+
+    public List<Prediction> getNeighbors(PointFeatures searchPoint, int k, List<Prediction> previousNeighbors, boolean trained){
+	KnnQuery query = KnnQuery.forCurrentThread();
+	getNeighbors(searchPoint, k, trained, query);
+	return query.getPredictions();
+    }
+
+    public int getNeighbors(PointFeatures searchPoint, int k, boolean trained, KnnQuery query){
+	searchNeighbors(searchPoint, k+1, query);
+	query.trim(trained);
+	return query.size();
+    }
+
+    public int searchNeighbors(PointFeatures searchPoint, int k, KnnQuery query){
+	query.reset(k, splitCount);
+	if(size > 0){
+	    double[] vector = query.getVector(dimensions);
+	    featureSet.getVector(searchPoint, vector);
+	    searchTree(0, size, 0, vector, query, query.getDistSoFar());
+	}
+	query.finish();
+	return query.size();
+    }
+
+    private void searchTree(int lo, int hi, int depth, double[] point, KnnQuery best, double[] distSoFar){
+	if(lo >= hi) return;
+	best.visit();
+	int node = (lo+hi) >>> 1;
+	int axis = depth % splitCount;
+	int offset = node*dimensions;
+
+	double dist = featureSet.distance(point, coords, offset);
+	if(dist < best.bound())
+	    best.offer(dist, tripIDs[node], timeIndices[node]);
+
+	boolean leftBranch = point[axis] < coords[offset+axis];
+	if(leftBranch) searchTree(lo, node, depth+1, point, best, distSoFar);
+	else searchTree(node+1, hi, depth+1, point, best, distSoFar);
+
+	//children restore distSoFar on the way out, so only this axis needs saving
+	double previous = distSoFar[axis];
+	distSoFar[axis] = featureSet.axialDistance(point, coords, offset, axis);
+
+	double distToSpace = 0;
+	for(int i=0;i<splitCount;i++)
+	    distToSpace+=distSoFar[i];
+
+	if(distToSpace <= best.farBound() && best.hasBudget()){
+	    if(leftBranch) searchTree(node+1, hi, depth+1, point, best, distSoFar);
+	    else searchTree(lo, node, depth+1, point, best, distSoFar);
+	}
+	distSoFar[axis] = previous;
+    }
+}
@@ -6,7 +6,13 @@ import org.chargecar.prize.util.PointFeatures;
 
 public class FullFeatureSet extends KdTreeFeatureSet {
     private final int featureCount = 7;
-    private final double MAXGPSDIST = 3e-4;
+    private static final double MAXGPSDIST = 3e-4;
+    /**
+     * Degrees of latitude or longitude beyond which the GPS distance is
+     * capped, so points further apart than this on either axis all look
+     * equally far.
+     */
+    public static final double GPS_CELL_SIZE = Math.sqrt(MAXGPSDIST);
     private final double[] weights = new double[] { 
 	    4e4, //lat 
 	    4e4, //lon
@@ -19,6 +25,14 @@ public class FullFeatureSet extends KdTreeFeatureSet {
 	    1, //day
 	    .01 } //acceleration
     ;
+    //calculateDayDist for every pair of DAY_OF_WEEK%7 values
+    private final double[][] dayDists = new double[7][7];
+
+    public FullFeatureSet() {
+	for (int i = 0; i < 7; i++)
+	    for (int j = 0; j < 7; j++)
+		dayDists[i][j] = calculateDayDist(i, j);
+    }
     
     public int getFeatureCount() {
 	return featureCount;
@@ -66,7 +80,8 @@ public class FullFeatureSet extends KdTreeFeatureSet {
 
     public double axialDistance(PointFeatures point1, PointFeatures point2,
 	    int split) {
-	double dist = Math.pow(getValue(point1, split)- getValue(point2, split),2.0);
+	double dist = getValue(point1, split)- getValue(point2, split);
+	dist *= dist;
 	
 	if (split == 0 || split == 1)
 	    dist = dist > MAXGPSDIST ? MAXGPSDIST : dist;
@@ -78,14 +93,116 @@ public class FullFeatureSet extends KdTreeFeatureSet {
 	return dist * weights[split];
     }
     
+    public int getDimensionCount() {
+	return 9;
+    }
+
+    public void getVector(PointFeatures point, double[] vector) {
+	vector[0] = point.getLatitude();
+	vector[1] = point.getLongitude();
+	vector[2] = point.getSpeed();
+	vector[3] = point.getElevation();
+	vector[4] = point.getBearing();
+	vector[5] = point.getPowerDemand();
+	vector[6] = point.getTotalPowerUsed();
+	Calendar time = point.getTime();
+	vector[7] = time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+	vector[8] = time.get(Calendar.DAY_OF_WEEK)%7;
+    }
+
+    /**
+     * Same sum as distance(PointFeatures, PointFeatures), axis by axis in
+     * the same order, without the per axis switch.
+     */
+    public double distance(double[] vector, double[] points, int offset) {
+	double d, dist = 0;
+	d = vector[0] - points[offset];
+	d *= d;
+	dist += (d > MAXGPSDIST ? MAXGPSDIST : d) * weights[0];
+	d = vector[1] - points[offset+1];
+	d *= d;
+	dist += (d > MAXGPSDIST ? MAXGPSDIST : d) * weights[1];
+	for (int i = 2; i < 7; i++) {
+	    d = vector[i] - points[offset+i];
+	    dist += d * d * weights[i];
+	}
+	dist += calculateTimeDist(vector[7], points[offset+7]) * weights[7];
+	dist += calculateDayDist(vector[8], points[offset+8]) * weights[8];
+	return dist;
+    }
+
+    public double axialDistance(double[] vector, double[] points, int offset,
+	    int split) {
+	if(split == 7)
+	    return calculateTimeDist(vector[7], points[offset+7]) * weights[7];
+	if(split == 8)
+	    return calculateDayDist(vector[8], points[offset+8]) * weights[8];
+	double dist = vector[split] - points[offset+split];
+	dist *= dist;
+	if (split < 2 && dist > MAXGPSDIST)
+	    dist = MAXGPSDIST;
+	return dist * weights[split];
+    }
+
+
+    /**
+     * Batched distance(), one pass per axis over the block so the loops have
+     * no calls and no data dependent control flow. Sums are built in the same
+     * axis order as distance(), so results are identical. The time wrap is
+     * applied once rather than looped, which is the same for minute of day
+     * values in [0, 1440), and day distances come from a table.
+     */
+    public void distances(double[] vector, double[] columns, int offset,
+	    int stride, int count, double[] out) {
+	double q = vector[0], w = weights[0];
+	int base = offset;
+	for (int j = 0; j < count; j++) {
+	    double d = q - columns[base + j];
+	    out[j] = Math.min(d * d, MAXGPSDIST) * w;
+	}
+	q = vector[1];
+	w = weights[1];
+	base = offset + stride;
+	for (int j = 0; j < count; j++) {
+	    double d = q - columns[base + j];
+	    out[j] += Math.min(d * d, MAXGPSDIST) * w;
+	}
+	for (int a = 2; a < 7; a++) {
+	    q = vector[a];
+	    w = weights[a];
+	    base = offset + a * stride;
+	    for (int j = 0; j < count; j++) {
+		double d = q - columns[base + j];
+		out[j] += d * d * w;
+	    }
+	}
+	q = vector[7];
+	w = weights[7];
+	base = offset + 7 * stride;
+	for (int j = 0; j < count; j++) {
+	    double d = Math.abs(q - columns[base + j]);
+	    d = d > 720 ? d - 720 : d;
+	    out[j] += d * d * w;
+	}
+	double[] days = dayDists[(int) vector[8]];
+	w = weights[8];
+	base = offset + 8 * stride;
+	for (int j = 0; j < count; j++) {
+	    out[j] += days[(int) columns[base + j]] * w;
+	}
+    }
 
     private double calculateTimeDist(PointFeatures point1, PointFeatures point2) {
-	double timeDist = getValue(point1, 7) - getValue(point2, 7);
+	return calculateTimeDist(getValue(point1, 7), getValue(point2, 7));
+    }
+
+    private double calculateTimeDist(double t1, double t2) {
+	double timeDist = t1 - t2;
 	while (timeDist > 720)
 	    timeDist = timeDist - 720;
 	while (timeDist < -720)
 	    timeDist = timeDist + 720;
-	return Math.pow(timeDist,2.0);
+	return timeDist * timeDist;
     }
 
     private double calculateGPSDist(PointFeatures point1, PointFeatures point2) {
@@ -98,35 +215,20 @@ public class FullFeatureSet extends KdTreeFeatureSet {
 
     private double calculateDayDist(PointFeatures point1,
 	    PointFeatures point2) {
-	double dayDist;
-	double v1 = getValue(point1,8);
-	double v2 = getValue(point2,8);
-	if(v1 == Calendar.SATURDAY % 7) v1 = Calendar.SATURDAY;
-	if(v2 == Calendar.SATURDAY % 7) v2 = Calendar.SATURDAY;
-	
+	return calculateDayDist(getValue(point1,8), getValue(point2,8));
+    }
+
+    /**
+     * Day values are DAY_OF_WEEK%7, so Saturday is 0 and Sunday is 1: the
+     * same day is 0, both weekdays or both weekend is 1, otherwise 2,
+     * squared.
+     */
+    private double calculateDayDist(double v1, double v2) {
 	if (v1 == v2)
-	    dayDist = 0;
-	else if ((
-		(v1 == Calendar.MONDAY)
-		|| (v1 == Calendar.TUESDAY)
-		|| (v1 == Calendar.WEDNESDAY)
-		|| (v1 == Calendar.THURSDAY) 
-		|| (v1 == Calendar.FRIDAY))
-		&& (
-		(v2 == Calendar.MONDAY)
-		|| (v2 == Calendar.TUESDAY)
-		|| (v2 == Calendar.WEDNESDAY)
-		|| (v2 == Calendar.THURSDAY) 
-		|| (v2 == Calendar.FRIDAY)))
-	    dayDist = 1;
-	else if ((
-		(v1 == Calendar.SATURDAY) 
-		|| (v1 == Calendar.SUNDAY))
-		&& ((v2 == Calendar.SATURDAY)
-		|| (v2 == Calendar.SUNDAY)))
-	    dayDist = 1;
-	else dayDist = 2;
-	return Math.pow(dayDist,2.0);
+	    return 0;
+	boolean weekend1 = v1 == Calendar.SATURDAY % 7 || v1 == Calendar.SUNDAY;
+	boolean weekend2 = v2 == Calendar.SATURDAY % 7 || v2 == Calendar.SUNDAY;
+	return weekend1 == weekend2 ? 1 : 4;
     }
 
     public double getWeight(int splitType) {
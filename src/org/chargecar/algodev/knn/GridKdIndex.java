@@ -0,0 +1,335 @@
+package org.chargecar.algodev.knn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.chargecar.algodev.predictors.Prediction;
+import org.chargecar.prize.util.PointFeatures;
+
+/**
+ * Two level KNN index: a grid of latitude/longitude cells with a small
+ * BucketKdTree per cell. Cells default to FullFeatureSet.GPS_CELL_SIZE, the
+ * distance past which the GPS axes are capped, so a query first searches
+ * its own cell and the 8 around it. Other cells are only searched when the
+ * k-th neighbour is further than the capped GPS distance to them, which
+ * keeps the search exact, and are visited nearest first so the bound
+ * tightens early. Axes 0 and 1 of the feature set must be latitude and
+ * longitude. save() writes the built index so that load() can open it
+ * without rebuilding.
+ */
+public class GridKdIndex implements KnnIndex {
+    //"KDGI" read as a little endian int
+    static final int MAGIC = 0x4947444B;
+    static final int VERSION = 2;
+    private final KdTreeFeatureSet featureSet;
+    private final int dimensions;
+    private final int splitCount;
+    private final double cellSize;
+    private final int leafSize;
+    private final int size;
+    //open addressed cell key to cell table, no boxing on lookups
+    private long[] tableKeys;
+    private int[] tableCells;
+    private int tableMask;
+    private final int[] cellLats;
+    private final int[] cellLons;
+    private final BucketKdTree[] cellTrees;
+
+    public GridKdIndex(List<KnnPoint> points, KdTreeFeatureSet featureSet){
+	this(points, featureSet, FullFeatureSet.GPS_CELL_SIZE, BucketKdTree.DEFAULT_LEAF_SIZE);
+    }
+
+    /**
+     * @param cellSize cell width in degrees of latitude and longitude
+     * @param leafSize bucket size of the per cell trees
+     */
+    public GridKdIndex(List<KnnPoint> points, KdTreeFeatureSet featureSet, double cellSize, int leafSize){
+	this.featureSet = featureSet;
+	this.dimensions = featureSet.getDimensionCount();
+	this.splitCount = featureSet.getFeatureCount();
+	this.cellSize = cellSize;
+	this.leafSize = leafSize;
+	this.size = points == null ? 0 : points.size();
+
+	Map<Long, Integer> cellIndex = new HashMap<Long, Integer>();
+	List<List<KnnPoint>> cellPoints = new ArrayList<List<KnnPoint>>();
+	List<Long> keys = new ArrayList<Long>();
+	for(int i=0;i<size;i++){
+	    KnnPoint kp = points.get(i);
+	    long key = key(cell(kp.getFeatures().getLatitude()), cell(kp.getFeatures().getLongitude()));
+	    Integer index = cellIndex.get(key);
+	    if(index == null){
+		index = cellPoints.size();
+		cellIndex.put(key, index);
+		cellPoints.add(new ArrayList<KnnPoint>());
+		keys.add(key);
+	    }
+	    cellPoints.get(index).add(kp);
+	}
+	int cells = cellPoints.size();
+	cellLats = new int[cells];
+	cellLons = new int[cells];
+	cellTrees = new BucketKdTree[cells];
+	for(int c=0;c<cells;c++){
+	    cellLats[c] = (int)(keys.get(c) >> 32);
+	    cellLons[c] = (int)(long)keys.get(c);
+	    cellTrees[c] = new BucketKdTree(cellPoints.get(c), featureSet, leafSize);
+	}
+	buildTable();
+    }
+
+    private GridKdIndex(KdTreeFeatureSet featureSet, double cellSize, int leafSize, int[] cellLats, int[] cellLons, BucketKdTree[] cellTrees){
+	this.featureSet = featureSet;
+	this.dimensions = featureSet.getDimensionCount();
+	this.splitCount = featureSet.getFeatureCount();
+	this.cellSize = cellSize;
+	this.leafSize = leafSize;
+	this.cellLats = cellLats;
+	this.cellLons = cellLons;
+	this.cellTrees = cellTrees;
+	int points = 0;
+	for(int c=0;c<cellTrees.length;c++){
+	    points += cellTrees[c].countNodes();
+	}
+	this.size = points;
+	buildTable();
+    }
+
+    private void buildTable(){
+	int capacity = 2;
+	while(capacity < 2*cellTrees.length) capacity <<= 1;
+	tableKeys = new long[capacity];
+	tableCells = new int[capacity];
+	tableMask = capacity-1;
+	Arrays.fill(tableCells, -1);
+	for(int c=0;c<cellTrees.length;c++){
+	    long key = key(cellLats[c], cellLons[c]);
+	    int slot = slot(key);
+	    while(tableCells[slot] >= 0) slot = (slot+1) & tableMask;
+	    tableKeys[slot] = key;
+	    tableCells[slot] = c;
+	}
+    }
+
+    private int slot(long key){
+	long h = key * 0x9E3779B97F4A7C15L;
+	return (int)(h >>> 40) & tableMask;
+    }
+
+    /**
+     * The cell's index, -1 when it has no points.
+     */
+    private int findCell(int cellLat, int cellLon){
+	long key = key(cellLat, cellLon);
+	int slot = slot(key);
+	while(tableCells[slot] >= 0){
+	    if(tableKeys[slot] == key) return tableCells[slot];
+	    slot = (slot+1) & tableMask;
+	}
+	return -1;
+    }
+
+    /**
+     * Writes the built cells and trees. Only feature vectors are stored, so
+     * the file stays valid when the feature set's weights change but not
+     * when its axes do.
+     * @param tableFile the .knn table the index was built from, its length
+     * and modification time are kept so load() can tell a retrained table
+     */
+    public void save(File file, File tableFile) throws IOException {
+	LittleEndianFile out = new LittleEndianFile(file);
+	try {
+	    out.putInt(MAGIC);
+	    out.putInt(VERSION);
+	    out.putInt(size);
+	    out.putInt(dimensions);
+	    out.putInt(splitCount);
+	    out.putInt(leafSize);
+	    out.putInt(cellTrees.length);
+	    out.putInt(0);
+	    out.putDouble(cellSize);
+	    out.putLong(tableFile.length());
+	    out.putLong(tableFile.lastModified());
+	    for(int c=0;c<cellTrees.length;c++){
+		out.putInt(cellLats[c]);
+		out.putInt(cellLons[c]);
+		cellTrees[c].write(out);
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * Opens an index written by save(). An index whose table file, or its
+     * number of points, does not match is rejected as stale.
+     * @param tableFile the .knn table the index should have been built from
+     * @param expectedSize number of points in that table
+     */
+    public static GridKdIndex load(File file, KdTreeFeatureSet featureSet, File tableFile, int expectedSize) throws IOException {
+	ByteBuffer in = LittleEndianFile.map(file);
+	if(in.getInt() != MAGIC) throw new IOException("Not a grid index: "+file);
+	int version = in.getInt();
+	if(version != VERSION) throw new IOException("Unsupported grid index version "+version);
+	int size = in.getInt();
+	int dimensions = in.getInt();
+	int splitCount = in.getInt();
+	if(size != expectedSize) throw new IOException("Grid index has "+size+" points, table has "+expectedSize);
+	if(dimensions != featureSet.getDimensionCount() || splitCount != featureSet.getFeatureCount())
+	    throw new IOException("Grid index was built for another feature set");
+	int leafSize = in.getInt();
+	int cells = in.getInt();
+	in.getInt();
+	double cellSize = in.getDouble();
+	long tableLength = in.getLong();
+	long tableModified = in.getLong();
+	if(tableLength != tableFile.length() || tableModified != tableFile.lastModified())
+	    throw new IOException("Grid index was built from another version of "+tableFile.getName());
+	int[] cellLats = new int[cells];
+	int[] cellLons = new int[cells];
+	BucketKdTree[] cellTrees = new BucketKdTree[cells];
+	for(int c=0;c<cells;c++){
+	    cellLats[c] = in.getInt();
+	    cellLons[c] = in.getInt();
+	    cellTrees[c] = BucketKdTree.read(in, featureSet, leafSize);
+	}
+	return new GridKdIndex(featureSet, cellSize, leafSize, cellLats, cellLons, cellTrees);
+    }
+
+    private int cell(double degrees){
+	return (int)Math.floor(degrees / cellSize);
+    }
+
+    private static long key(int cellLat, int cellLon){
+	return ((long)cellLat << 32) | (cellLon & 0xFFFFFFFFL);
+    }
+
+    public int getCellCount(){
+	return cellTrees.length;
+    }
+
+    /**
+     * Approximate heap bytes of the cells and their trees.
+     */
+    public long getMemoryBytes(){
+	//cell arrays and the cell table
+	long bytes = 8L*cellTrees.length + 12L*tableKeys.length;
+	for(BucketKdTree tree : cellTrees) bytes += tree.getMemoryBytes();
+	return bytes;
+    }
+
+    public int countNodes(){
+	return size;
+    }
+
+    public Prediction getNeighbor(PointFeatures searchPoint){
+	KnnQuery query = KnnQuery.forCurrentThread();
+	if(searchNeighbors(searchPoint, 1, query) == 0) return null;
+	return query.getPrediction(0);
+    }
+
+    public List<Prediction> getNeighbors(PointFeatures searchPoint, int k, List<Prediction> previousNeighbors, boolean trained){
+	KnnQuery query = KnnQuery.forCurrentThread();
+	getNeighbors(searchPoint, k, trained, query);
+	return query.getPredictions();
+    }
+
+    public int getNeighbors(PointFeatures searchPoint, int k, boolean trained, KnnQuery query){
+	searchNeighbors(searchPoint, k+1, query);
+	query.trim(trained);
+	return query.size();
+    }
+
+    public int searchNeighbors(PointFeatures searchPoint, int k, KnnQuery query){
+	query.reset(k, splitCount);
+	double[] vector = query.getVector(dimensions);
+	featureSet.getVector(searchPoint, vector);
+	int homeLat = cell(vector[0]);
+	int homeLon = cell(vector[1]);
+	for(int dLat=-1;dLat<=1;dLat++){
+	    for(int dLon=-1;dLon<=1;dLon++){
+		int c = findCell(homeLat+dLat, homeLon+dLon);
+		if(c >= 0) cellTrees[c].search(vector, query);
+	    }
+	}
+	//any point outside the block is at least a block edge away on one axis
+	double[] probe = query.getProbe();
+	double outside = Math.min(
+		edgeDistance(vector, probe, 0, homeLat),
+		edgeDistance(vector, probe, 1, homeLon));
+	if(outside <= query.farBound() && query.hasBudget()){
+	    //the other cells within the bound, nearest first off a heap, so
+	    //the bound tightens early and prunes the rest
+	    int[] order = query.getCellOrder(cellTrees.length);
+	    double[] bounds = query.getCellBounds();
+	    double farBound = query.farBound();
+	    int count = 0;
+	    for(int c=0;c<cellTrees.length;c++){
+		if(Math.abs(cellLats[c]-homeLat) <= 1 && Math.abs(cellLons[c]-homeLon) <= 1) continue;
+		double lowerBound = cellDistance(vector, probe, 0, cellLats[c])
+		    + cellDistance(vector, probe, 1, cellLons[c]);
+		if(lowerBound <= farBound){
+		    order[count] = c;
+		    bounds[count] = lowerBound;
+		    count++;
+		}
+	    }
+	    for(int i=count/2-1;i>=0;i--) siftDown(order, bounds, i, count);
+	    while(count > 0 && query.hasBudget()){
+		int c = order[0];
+		double lowerBound = bounds[0];
+		if(lowerBound > query.farBound()) break;
+		count--;
+		order[0] = order[count];
+		bounds[0] = bounds[count];
+		siftDown(order, bounds, 0, count);
+		cellTrees[c].search(vector, query);
+	    }
+	}
+	query.finish();
+	return query.size();
+    }
+
+    private static void siftDown(int[] order, double[] bounds, int i, int end){
+	while(2*i+1 < end){
+	    int child = 2*i+1;
+	    if(child+1 < end && bounds[child+1] < bounds[child]) child++;
+	    if(bounds[i] <= bounds[child]) return;
+	    int c = order[i];
+	    order[i] = order[child];
+	    order[child] = c;
+	    double b = bounds[i];
+	    bounds[i] = bounds[child];
+	    bounds[child] = b;
+	    i = child;
+	}
+    }
+
+    /**
+     * Axial distance from the vector to the nearer edge of the 3 cell block
+     * around home on this axis.
+     */
+    private double edgeDistance(double[] vector, double[] probe, int axis, int home){
+	double low = (home-1)*cellSize;
+	double high = (home+2)*cellSize;
+	probe[axis] = vector[axis] - low < high - vector[axis] ? low : high;
+	return featureSet.axialDistance(vector, probe, 0, axis);
+    }
+
+    /**
+     * Axial distance from the vector to the nearest point of a cell on this
+     * axis, a lower bound for every point in the cell.
+     */
+    private double cellDistance(double[] vector, double[] probe, int axis, int cell){
+	double low = cell*cellSize;
+	double high = (cell+1)*cellSize;
+	probe[axis] = Math.min(Math.max(vector[axis], low), high);
+	return featureSet.axialDistance(vector, probe, 0, axis);
+    }
+}
@@ -2,6 +2,7 @@ package org.chargecar.algodev.knn;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.chargecar.algodev.predictors.Prediction;
 import org.chargecar.prize.util.PointFeatures;
@@ -10,8 +11,11 @@ import org.chargecar.prize.util.PointFeatures;
 
 public class KdForest {
   //private List<Double> expertWeights;
+    //experts per pool task when searching in parallel
+    static final int EXPERT_CHUNK_SIZE = 32;
     private List<Expert> experts;
     private KdTreeFeatureSet featureSet;
+    private ExecutorService pool;
     
     public class Expert{
 	private final KdTree tree;
@@ -56,6 +60,16 @@ public class KdForest {
 	return experts.size();
     }    
 
+    /**
+     * Searches the experts of each getNeighbors call in parallel on pool,
+     * e.g. KnnBatch.sharedPool(). Predictions are still merged in expert
+     * order, so the results are the same as the sequential loop. null
+     * searches on the calling thread.
+     */
+    public void setPool(ExecutorService pool){
+	this.pool = pool;
+    }
+
     public void resetWeights(){
 	for(Expert e : experts){
 	    e.setWeight(1D);
@@ -63,24 +77,72 @@ public class KdForest {
 	
     }
     
-    public List<Prediction> getNeighbors(PointFeatures searchPoint, boolean trained){	
+    public List<Prediction> getNeighbors(final PointFeatures searchPoint, final boolean trained){	
 	List<Prediction> predictions = new ArrayList<Prediction>();
-	
-	for(Expert expert : experts){
-	    //TODO Test single searchNeighbor vs searchNeighbors k=1
-	    Prediction p = expert.getTree().getNeighbor(searchPoint);
-	    if(trained && p.getWeight() > 99){
-		//We have trained on the data in the set, so skip the perfect match trip as it is the search trip
-		//We use the rest of the dataset trips to achieve LOOCV
-		continue;
-	    }
-	    else{
-		p.setWeight(p.getWeight()*expert.getWeight());		
+	if(pool == null || experts.size() <= EXPERT_CHUNK_SIZE){
+	    KnnQuery query = KnnQuery.forCurrentThread();
+	    for(Expert expert : experts){
+		Prediction prediction = searchExpert(expert, searchPoint, trained, query);
+		if(prediction != null) predictions.add(prediction);
 	    }
-	    
-	    predictions.add(p);
+	    return predictions;
 	}
 	
+	final Prediction[] slots = new Prediction[experts.size()];
+	KnnBatch.runChunks(slots.length, EXPERT_CHUNK_SIZE, pool, new KnnBatch.ChunkTask(){
+	    public void run(int from, int to){
+		KnnQuery query = KnnQuery.forCurrentThread();
+		for(int i=from;i<to;i++){
+		    slots[i] = searchExpert(experts.get(i), searchPoint, trained, query);
+		}
+	    }
+	});
+	for(Prediction prediction : slots){
+	    if(prediction != null) predictions.add(prediction);
+	}
 	return predictions;
     }
+
+    private Prediction searchExpert(Expert expert, PointFeatures searchPoint, boolean trained, KnnQuery query){
+	//TODO Test single searchNeighbor vs searchNeighbors k=1
+	if(expert.getTree().searchNeighbors(searchPoint, 1, query) == 0) return null;
+	double weight = query.getWeight(0);
+	if(trained && weight > 99){
+	    //We have trained on the data in the set, so skip the perfect match trip as it is the search trip
+	    //We use the rest of the dataset trips to achieve LOOCV
+	    return null;
+	}
+	return new Prediction(weight*expert.getWeight(), query.getTripID(0), query.getTimeIndex(0), null);
+    }
+
+    public List<List<Prediction>> getNeighborsBatch(List<PointFeatures> searchPoints, boolean trained){
+	return getNeighborsBatch(searchPoints, trained, null);
+    }
+
+    /**
+     * getNeighbors for every search point. Each run of queries is answered
+     * expert by expert, so one trip's tree is searched for the whole run
+     * while it is in cache; every list still holds its predictions in
+     * expert order.
+     * @param pool threads to share the work over, null to run on the caller
+     */
+    public List<List<Prediction>> getNeighborsBatch(final List<PointFeatures> searchPoints, final boolean trained, ExecutorService pool){
+	final int[] order = KnnBatch.localityOrder(searchPoints);
+	final List<List<Prediction>> results = new ArrayList<List<Prediction>>(searchPoints.size());
+	for(int i=0;i<searchPoints.size();i++){
+	    results.add(new ArrayList<Prediction>());
+	}
+	KnnBatch.runChunks(order.length, KnnBatch.CHUNK_SIZE, pool, new KnnBatch.ChunkTask(){
+	    public void run(int from, int to){
+		KnnQuery query = new KnnQuery();
+		for(Expert expert : experts){
+		    for(int i=from;i<to;i++){
+			Prediction prediction = searchExpert(expert, searchPoints.get(order[i]), trained, query);
+			if(prediction != null) results.get(order[i]).add(prediction);
+		    }
+		}
+	    }
+	});
+	return results;
+    }
 }
@@ -1,260 +1,215 @@
 package org.chargecar.algodev.knn;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 import org.chargecar.algodev.predictors.Prediction;
 import org.chargecar.prize.util.PointFeatures;
 
-public class KdTree {
-    private KdTreeNode root;
-    private final Random randomGenerator = new Random();
+/**
+ * Pointer based k-d tree that also accepts points after construction.
+ * Added points go into a small unbalanced buffer tree; when the buffer is
+ * full it becomes a balanced level and levels of similar size are merged,
+ * so every point is rebuilt O(log n) times instead of the whole history
+ * being rebuilt every few thousand points. All levels are searched with the
+ * same KnnQuery, so results match a single tree over the same points.
+ * Searches keep all of their state in a KnnQuery, so any number of threads
+ * may search the same tree at once; addNode must not run concurrently with
+ * searches.
+ */
+public class KdTree implements KnnIndex {
+    private static final int BUFFER_SIZE = 1024;
     private final KdTreeFeatureSet featureSet;
-    private double kBestDist = Double.MAX_VALUE;
-    private int treeSize;
-    private int balancedSize;
-    private List<KnnPoint> pointList;
+    private final int splitCount;
+    private final int dimensions;
+    private final boolean parallelBuild;
+    //balanced levels, largest first
+    private final List<Level> levels = new ArrayList<Level>();
+    private KdTreeNode buffer;
+    private List<KnnPoint> bufferPoints = new ArrayList<KnnPoint>();
+    private List<double[]> bufferVectors = new ArrayList<double[]>();
+
+    private static class Level {
+	private final List<KnnPoint> points;
+	//feature vectors of points, extracted once when the point was added
+	private final List<double[]> vectors;
+	private final KdTreeNode root;
+	private Level(List<KnnPoint> points, List<double[]> vectors, KdTreeNode root){
+	    this.points = points;
+	    this.vectors = vectors;
+	    this.root = root;
+	}
+    }
     
     public KdTree(List<KnnPoint> points, KdTreeFeatureSet featureSet){
+	this(points, featureSet, false);
+    }
+
+    /**
+     * @param parallelBuild build (and rebuild) subtrees as fork/join tasks,
+     * same tree as the serial build
+     */
+    public KdTree(List<KnnPoint> points, KdTreeFeatureSet featureSet, boolean parallelBuild){
 	this.featureSet = featureSet;
-	
-	pointList = new ArrayList<KnnPoint>();
-	if(points != null) pointList.addAll(points);
-	points = null;
-	this.root = buildTree(pointList, 0);
-	if(root == null) treeSize = 0;
-	else treeSize = root.countNodes();
-	balancedSize = treeSize;
+	this.parallelBuild = parallelBuild;
+	this.splitCount = featureSet.getFeatureCount();
+	this.dimensions = featureSet.getDimensionCount();
+	
+	if(points != null && !points.isEmpty()){
+	    List<KnnPoint> pointList = new ArrayList<KnnPoint>(points);
+	    List<double[]> vectors = new ArrayList<double[]>(pointList.size());
+	    for(KnnPoint point : pointList){
+		vectors.add(featureSet.getVector(point.getFeatures()));
+	    }
+	    levels.add(new Level(pointList, vectors, buildTree(pointList, vectors, 0)));
+	}
     }
     
     public void addNode(KnnPoint point){
-	if(this.root == null){	    
-	    this.root = new KdTreeNode(point, null, null, 0);	    
+	double[] vector = featureSet.getVector(point.getFeatures());
+	if(buffer == null){	    
+	    buffer = new KdTreeNode(point, vector, null, null, 0);	    
 	}
 	else{
-	    this.root.addChild(point, featureSet);
+	    buffer.addChild(point, vector, splitCount);
 	}
-	pointList.add(point);
-	if(pointList.size() > (balancedSize+2000)){// && pointList.size() > 1000){
-	    System.out.println("Rebalancing tree of size "+pointList.size());
-	//    clearTree(root);
-	    this.root = null;
-	    this.root = buildTree(pointList, 0);
-	    this.balancedSize = pointList.size();
-	    System.out.println("Complete.");
+	bufferPoints.add(point);
+	bufferVectors.add(vector);
+	if(bufferPoints.size() >= BUFFER_SIZE){
+	    flushBuffer();
 	}
     }    
     
-    /*private void clearTree(KdTreeNode node){
-	if(node == null) return;
-	else{
-	    clearTree(node.getLeftSubtree());
-	    clearTree(node.getRightSubtree());
-	    node.
+    /**
+     * Turns the buffer into the smallest level, then merges it upwards
+     * while the next larger level is no bigger, like carrying in a binary
+     * counter.
+     */
+    private void flushBuffer(){
+	List<KnnPoint> merged = bufferPoints;
+	List<double[]> mergedVectors = bufferVectors;
+	buffer = null;
+	bufferPoints = new ArrayList<KnnPoint>();
+	bufferVectors = new ArrayList<double[]>();
+	while(!levels.isEmpty() && levels.get(levels.size()-1).points.size() <= merged.size()){
+	    Level smaller = levels.remove(levels.size()-1);
+	    smaller.points.addAll(merged);
+	    smaller.vectors.addAll(mergedVectors);
+	    merged = smaller.points;
+	    mergedVectors = smaller.vectors;
 	}
-    }*/
+	levels.add(new Level(merged, mergedVectors, buildTree(merged, mergedVectors, 0)));
+    }
     
-    private KdTreeNode buildTree(List<KnnPoint> points, int splitType){
-	splitType = splitType % featureSet.getFeatureCount();
-	KdTreeNode node;
-	KnnPoint point;
-	KdTreeNode leftSubtree = null;
-	KdTreeNode rightSubtree = null;
-	if(points == null || points.size() == 0) return null;
-	else if(points.size() == 1){	    
-	    point = points.get(0);
-	    //points.set(0, null);
+    private KdTreeNode buildTree(List<KnnPoint> points, List<double[]> vectors, int splitType){
+	int size = points == null ? 0 : points.size();
+	double[] keys = new double[size*splitCount];
+	int[] perm = new int[size];
+	for(int i=0;i<size;i++){
+	    System.arraycopy(vectors.get(i), 0, keys, i*splitCount, splitCount);
+	    perm[i] = i;
 	}
-	else{ 
-	    int pivot = select(points, 0, points.size()-1, (int)(points.size()/2), splitType);
-	    point = points.get(pivot);
-	    //points.set(pivot, null);
-	    leftSubtree = buildTree(new ArrayList<KnnPoint>(points.subList(0, pivot)), splitType+1);
-	    rightSubtree = buildTree(new ArrayList<KnnPoint>(points.subList(pivot+1, points.size())), splitType+1);
+	KdTreeBuilder.build(keys, splitCount, splitCount, perm, parallelBuild);
+	return buildNodes(points, vectors, perm, 0, size, splitType);
+    }
 	    
-	}
-	point.setDistance(-1);
-	node = new KdTreeNode(point, leftSubtree, rightSubtree, splitType);
-	return node;
+    private KdTreeNode buildNodes(List<KnnPoint> points, List<double[]> vectors, int[] perm, int lo, int hi, int splitType){
+	if(lo >= hi) return null;
+	splitType = splitType % splitCount;
+	int mid = (lo+hi) >>> 1;
+	KdTreeNode leftSubtree = buildNodes(points, vectors, perm, lo, mid, splitType+1);
+	KdTreeNode rightSubtree = buildNodes(points, vectors, perm, mid+1, hi, splitType+1);
+	return new KdTreeNode(points.get(perm[mid]), vectors.get(perm[mid]), leftSubtree, rightSubtree, splitType);
     }
     
     public int countNodes(){
-	return root.countNodes();
+	int nodes = bufferPoints.size();
+	for(Level level : levels){
+	    nodes += level.points.size();
+	}
+	return nodes;
     }
     
     public Prediction getNeighbor(PointFeatures searchPoint){
-	Comparator<KnnPoint> comp = new KnnComparator(searchPoint,featureSet);
-	PriorityQueue<KnnPoint> neighbors = new PriorityQueue<KnnPoint>(1,comp);
-	kBestDist = Double.MAX_VALUE;
-
-	searchTree(root, searchPoint, neighbors, 1, new double[featureSet.getFeatureCount()]);
-	
-	KnnPoint kp = neighbors.poll();
-	
-	if(kp != null)
-	 return new Prediction(1/(kp.getDistance()+0.01),kp.getTripID(),kp.getTimeIndex(),kp);
-	else return null;	
+	KnnQuery query = KnnQuery.forCurrentThread();
+	if(searchNeighbors(searchPoint, 1, query) == 0) return null;
+	return query.getPrediction(0);
     }
     
     public List<Prediction> getNeighbors(PointFeatures searchPoint, int k, List<Prediction> previousNeighbors, boolean trained){//, int lookahead){
-	Comparator<KnnPoint> comp = new KnnComparator(searchPoint,featureSet);
-	PriorityQueue<KnnPoint> neighbors = new PriorityQueue<KnnPoint>(k+2,comp);
-	kBestDist = Double.MAX_VALUE;
-	
-	/*if(previousNeighbors != null){
-	    for(Prediction p: previousNeighbors){
-		KnnPoint kp = p.getPoint();
-		double dist = featureSet.distance(kp.getFeatures(),searchPoint);
-		kp.setDistance(dist);
-		if(dist < kBestDist){    
-		    addNeighbor(neighbors, kp, k);
-		    if(neighbors.size() == k )
-			kBestDist = neighbors.peek().getDistance();
-		}		 
-	    }
-	}*/
-	
-	searchTree(root, searchPoint, neighbors, k+1, new double[featureSet.getFeatureCount()]);
+	KnnQuery query = KnnQuery.forCurrentThread();
+	getNeighbors(searchPoint, k, trained, query);
+	return query.getPredictions();
+    }
 
-	List<Prediction> predictions = new ArrayList<Prediction>();
-	
-	KnnPoint kp = neighbors.poll();
-	
-	while(kp != null){
-	    Prediction p = new Prediction(1/(kp.getDistance()+0.01),kp.getTripID(),kp.getTimeIndex(),kp);
-	    predictions.add(p);
-	    kp = neighbors.poll();
-	}
-	
-	if(predictions.size() == 0) return predictions;
-	
-	double weight = predictions.get(predictions.size()-1).getWeight();
-	
-	if(trained && weight > 99) //Remove best match -- perfect match of the search point
-	    return predictions.subList(0, predictions.size() - 1);
-	else //remove worst match, only want K predictions
-	    return predictions.subList(1, predictions.size());
-	
+    /**
+     * Finds the k+1 nearest neighbours (one per trip) and drops either the
+     * perfect match of a trained search point or the furthest neighbour.
+     * The results are left in the query, nothing is allocated once the
+     * query has been used with this k.
+     */
+    public int getNeighbors(PointFeatures searchPoint, int k, boolean trained, KnnQuery query){
+	searchNeighbors(searchPoint, k+1, query);
+	query.trim(trained);
+	return query.size();
     }
-        
-    private void addNeighbor(PriorityQueue<KnnPoint> bestKNeighbors, KnnPoint neighbor, int k){
-	int tripID = neighbor.getTripID();	
-	
-	for(KnnPoint kp:bestKNeighbors){
-	    if(kp.getTripID() == tripID){
-		if(kp.getDistance() > neighbor.getDistance()){
-		    bestKNeighbors.remove(kp);
-		    bestKNeighbors.add(neighbor);
-		    return;
-		}		
-		else
-		    return;
-	    }
+
+    public List<List<Prediction>> getNeighborsBatch(List<PointFeatures> searchPoints, int k, boolean trained){
+	return getNeighborsBatch(searchPoints, k, trained, null);
+    }
+
+    /**
+     * getNeighbors for every search point, see KnnBatch.
+     * @param pool threads to share the work over, null to run on the caller
+     */
+    public List<List<Prediction>> getNeighborsBatch(List<PointFeatures> searchPoints, int k, boolean trained, ExecutorService pool){
+	return KnnBatch.getNeighbors(this, searchPoints, k, trained, pool);
+    }
+
+    public int searchNeighbors(PointFeatures searchPoint, int k, KnnQuery query){
+	query.reset(k, splitCount);
+	double[] vector = query.getVector(dimensions);
+	featureSet.getVector(searchPoint, vector);
+	double[] distSoFar = query.getDistSoFar();
+	for(Level level : levels){
+	    searchTree(level.root, vector, query, distSoFar);
 	}
-	    	
-	bestKNeighbors.add(neighbor);
-	
-	while(bestKNeighbors.size() > k)
-	    bestKNeighbors.poll();   
+	searchTree(buffer, vector, query, distSoFar);
+	query.finish();
+	return query.size();
     }
-   
-    private void searchTree(KdTreeNode node, PointFeatures point, PriorityQueue<KnnPoint> bestKNeighbors, int k, double[] distSoFar){	 
+
+    private void searchTree(KdTreeNode node, double[] point, KnnQuery best, double[] distSoFar){
 	if(node == null) return;
+	best.visit();
+	double[] nodeVector = node.getVector();
 	
-	double dist = featureSet.distance(node.getValue().getFeatures(),point);
-	node.getValue().setDistance(dist);
+	double dist = featureSet.distance(point, nodeVector);
 	
-	if(dist < kBestDist){    
-	    addNeighbor(bestKNeighbors, node.getValue(),k);
-	    if(bestKNeighbors.size() == k )
-		kBestDist = bestKNeighbors.peek().getDistance();
+	if(dist < best.bound()){
+	    KnnPoint value = node.getValue();
+	    best.offer(dist, value.getTripID(), value.getTimeIndex());
 	}
-	    
-	double pointAxisValue = getValue(point, node.getSplitType());
-	double nodeAxisValue = getValue(node.getValue().getFeatures(), node.getSplitType());
-	boolean leftBranch = pointAxisValue < nodeAxisValue;
+	
+	int splitType = node.getSplitType();
+	boolean leftBranch = point[splitType] < nodeVector[splitType];
 	KdTreeNode branch = leftBranch ? node.getLeftSubtree() : node.getRightSubtree();
 	
-	searchTree(branch, point, bestKNeighbors, k, distSoFar.clone());
+	//children restore distSoFar before returning, so no copy is needed
+	searchTree(branch, point, best, distSoFar);
 	
-	double axialDist = featureSet.axialDistance(node.getValue().getFeatures(),point, node.getSplitType());
-	distSoFar[node.getSplitType()] = axialDist;
+	double previous = distSoFar[splitType];
+	distSoFar[splitType] = featureSet.axialDistance(point, nodeVector, splitType);
 	
 	double distToSpace = 0;
-	for(int i=0;i<distSoFar.length;i++)
+	for(int i=0;i<splitCount;i++)
 	    distToSpace+=distSoFar[i];
 	
-	if(distToSpace <= kBestDist){
-
+	if(distToSpace <= best.farBound() && best.hasBudget()){
 	    branch = leftBranch ?  node.getRightSubtree() : node.getLeftSubtree();
-	    searchTree(branch, point, bestKNeighbors, k, distSoFar.clone());
-	}
-}
-    
-    private int select(List<KnnPoint> points, int left, int right, int k, int splitType) {
-	while(true){	    
-	    //int pivotIndex = (left+right)/2;
-	    int pivotIndex = randomGenerator.nextInt(right-left+1)+left;
-	    int pivotNewIndex = partition(points, left, right, pivotIndex, splitType);
-	    if (k == pivotNewIndex)
-		return k;
-	    else if (k < pivotNewIndex)
-		right = pivotNewIndex-1;
-	    else
-		left = pivotNewIndex+1;
+	    searchTree(branch, point, best, distSoFar);
 	}
-    }
-        
-    private int partition(List<KnnPoint> points, int left, int right, int pivot, int splitType){
-	double pivotValue = getValue(points.get(pivot).getFeatures(),splitType);
-	swap(points, pivot, right);
-	int storeIndex = left;
-	for(int i = left; i <= right-1;i++){
-	    if(getValue(points.get(i).getFeatures(),splitType) < pivotValue){
-		swap(points, storeIndex, i);
-		storeIndex++;
-	    }
-	}
-	swap(points, right, storeIndex);
-	return storeIndex;
-    }
-    
-    private void swap(List<KnnPoint> points, int x, int y){
-	KnnPoint temp = points.get(x);
-	points.set(x, points.get(y));
-	points.set(y, temp);
-    }
-    
-    private double distance(PointFeatures one, PointFeatures two){
-	return featureSet.distance(one, two);
-    }
-    private double getValue(PointFeatures pf, int split){
-	return featureSet.getValue(pf, split);
-    }
-    
-    private double getWeight(int split){
-	return featureSet.getWeight(split);
+	distSoFar[splitType] = previous;
     }
 }
-
-class KnnComparator implements Comparator<KnnPoint>{
-    private final PointFeatures point;
-    private final KdTreeFeatureSet featureSet;
-    
-    public KnnComparator(PointFeatures p, KdTreeFeatureSet fs){
-	point = p;
-	featureSet = fs;
-    }
-    @Override
-    public int compare(KnnPoint p1, KnnPoint p2) {
-	double d1 = p1.getDistance();//featureSet.distance(point, p1.getFeatures());
-	double d2 = p2.getDistance();//featureSet.distance(point, p2.getFeatures());
-	
-	return Double.compare(d2, d1);
-    }
-    
-}
-
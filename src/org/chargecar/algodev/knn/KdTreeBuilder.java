@@ -0,0 +1,147 @@
+package org.chargecar.algodev.knn;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Median split layout shared by the k-d trees. Reorders an index array over
+ * a flat coordinate array so that the subtree over [lo,hi) has its root at
+ * (lo+hi)/2 with smaller values on the split axis to its left and larger
+ * ones to its right. Partitioning is in place on the index array with a
+ * deterministic pivot, so the parallel build gives exactly the serial
+ * layout: subtrees above PARALLEL_THRESHOLD points are built as separate
+ * fork/join tasks.
+ *
+ * With a leaf size, ranges of at most leafSize points are left as buckets
+ * and the median stays in the right half: [lo,mid) and [mid,hi).
+ */
+class KdTreeBuilder {
+    static final int PARALLEL_THRESHOLD = 8192;
+
+    private final double[] coords;
+    private final int dimensions;
+    private final int splitCount;
+    private final int[] perm;
+    private final int leafSize;
+
+    private KdTreeBuilder(double[] coords, int dimensions, int splitCount, int[] perm, int leafSize){
+	this.coords = coords;
+	this.dimensions = dimensions;
+	this.splitCount = splitCount;
+	this.perm = perm;
+	this.leafSize = leafSize;
+    }
+
+    /**
+     * @param coords point i's value on axis a is coords[i*dimensions+a]
+     * @param perm indices into coords, reordered into tree layout
+     */
+    static void build(double[] coords, int dimensions, int splitCount, int[] perm, boolean parallel){
+	build(coords, dimensions, splitCount, perm, 0, parallel);
+    }
+
+    /**
+     * @param leafSize largest bucket, 0 for one point per node
+     */
+    static void build(double[] coords, int dimensions, int splitCount, int[] perm, int leafSize, boolean parallel){
+	KdTreeBuilder builder = new KdTreeBuilder(coords, dimensions, splitCount, perm, leafSize);
+	if(parallel && perm.length > PARALLEL_THRESHOLD){
+	    getPool().invoke(builder.new BuildTask(0, perm.length, 0));
+	}
+	else{
+	    builder.buildSerial(0, perm.length, 0);
+	}
+    }
+
+    private static ForkJoinPool getPool(){
+	return (ForkJoinPool)KnnBatch.sharedPool();
+    }
+
+    private void buildSerial(int lo, int hi, int depth){
+	while(hi - lo > Math.max(1, leafSize)){
+	    int mid = split(lo, hi, depth);
+	    int rightLo = rightStart(mid);
+	    //recurse on the smaller half, loop on the larger
+	    if(mid - lo < hi - rightLo){
+		buildSerial(lo, mid, depth+1);
+		lo = rightLo;
+	    }
+	    else{
+		buildSerial(rightLo, hi, depth+1);
+		hi = mid;
+	    }
+	    depth++;
+	}
+    }
+
+    private int rightStart(int mid){
+	return leafSize == 0 ? mid+1 : mid;
+    }
+
+    private int split(int lo, int hi, int depth){
+	int mid = (lo+hi) >>> 1;
+	select(lo, hi-1, mid, depth % splitCount);
+	return mid;
+    }
+
+    private double key(int i, int axis){
+	return coords[perm[i]*dimensions+axis];
+    }
+
+    private void select(int left, int right, int k, int axis){
+	while(right > left){
+	    double pivotValue = medianOfThree(key(left, axis), key((left+right) >>> 1, axis), key(right, axis));
+	    //three way partition so runs of equal values (parked car) stay linear
+	    int lt = left;
+	    int gt = right;
+	    int i = left;
+	    while(i <= gt){
+		double value = key(i, axis);
+		if(value < pivotValue) swap(lt++, i++);
+		else if(value > pivotValue) swap(i, gt--);
+		else i++;
+	    }
+	    if(k < lt) right = lt-1;
+	    else if(k > gt) left = gt+1;
+	    else return;
+	}
+    }
+
+    private static double medianOfThree(double a, double b, double c){
+	if(a < b){
+	    if(b < c) return b;
+	    return a < c ? c : a;
+	}
+	if(a < c) return a;
+	return b < c ? c : b;
+    }
+
+    private void swap(int x, int y){
+	int temp = perm[x];
+	perm[x] = perm[y];
+	perm[y] = temp;
+    }
+
+    private class BuildTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private final int lo;
+	private final int hi;
+	private final int depth;
+
+	BuildTask(int lo, int hi, int depth){
+	    this.lo = lo;
+	    this.hi = hi;
+	    this.depth = depth;
+	}
+
+	@Override
+	protected void compute(){
+	    if(hi - lo <= PARALLEL_THRESHOLD){
+		buildSerial(lo, hi, depth);
+		return;
+	    }
+	    int mid = split(lo, hi, depth);
+	    invokeAll(new BuildTask(lo, mid, depth+1), new BuildTask(rightStart(mid), hi, depth+1));
+	}
+    }
+}
@@ -15,4 +15,57 @@ public abstract class KdTreeFeatureSet {
     
     public abstract double axialDistance(PointFeatures point1, PointFeatures point2, int splitType);
     
+    /**
+     * Number of values stored per point by the array based trees. Must cover
+     * every axis used by distance(), the first getFeatureCount() of which are
+     * also split axes.
+     */
+    public int getDimensionCount(){
+	return getFeatureCount();
+    }
+
+    public double[] getVector(PointFeatures point){
+	double[] vector = new double[getDimensionCount()];
+	getVector(point, vector);
+	return vector;
+    }
+
+    public void getVector(PointFeatures point, double[] vector){
+	for(int i=0;i<getDimensionCount();i++){
+	    vector[i] = getValue(point, i);
+	}
+    }
+
+    /**
+     * Distance between a vector and the point stored at offset in a flat
+     * array of vectors, same result as distance() on the source points.
+     */
+    public abstract double distance(double[] vector, double[] points, int offset);
+
+    public abstract double axialDistance(double[] vector, double[] points, int offset, int splitType);
+
+    public double distance(double[] vector1, double[] vector2){
+	return distance(vector1, vector2, 0);
+    }
+
+    public double axialDistance(double[] vector1, double[] vector2, int splitType){
+	return axialDistance(vector1, vector2, 0, splitType);
+    }
+
+    /**
+     * Distances from vector to count points stored column-wise: axis a of
+     * point j is columns[a*stride + offset + j]. out[j] gets the same value
+     * distance() gives for point j. Feature sets should override this with
+     * a straight-line loop per axis; this version gathers each point.
+     */
+    public void distances(double[] vector, double[] columns, int offset, int stride, int count, double[] out){
+	int dims = getDimensionCount();
+	double[] point = new double[dims];
+	for(int j=0;j<count;j++){
+	    for(int a=0;a<dims;a++){
+		point[a] = columns[a*stride + offset + j];
+	    }
+	    out[j] = distance(vector, point, 0);
+	}
+    }
 }
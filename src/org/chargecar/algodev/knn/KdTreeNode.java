@@ -4,6 +4,7 @@ package org.chargecar.algodev.knn;
 
 public class KdTreeNode {
     private final KnnPoint value;
+    private final double[] vector;
     private KdTreeNode leftSubtree;
     private KdTreeNode rightSubtree;
     private final int splitType;
@@ -12,17 +13,22 @@ public class KdTreeNode {
         return value;
     }
 
-    public void addChild(KnnPoint point, KdTreeFeatureSet featureSet){
-	double pointAxisValue = featureSet.getValue(point.getFeatures(), getSplitType());	
-	double nodeAxisValue = featureSet.getValue(value.getFeatures(), getSplitType());
-	boolean leftBranch = pointAxisValue < nodeAxisValue;
+    /**
+     * Feature vector of the value, see KdTreeFeatureSet.getVector().
+     */
+    public double[] getVector() {
+	return vector;
+    }
+
+    public void addChild(KnnPoint point, double[] pointVector, int splitCount){
+	boolean leftBranch = pointVector[splitType] < vector[splitType];
 	if(leftBranch){
-	    if(leftSubtree == null) leftSubtree = new KdTreeNode(point, null, null, (splitType+1)%featureSet.getFeatureCount());		    
-	    else leftSubtree.addChild(point, featureSet);		
+	    if(leftSubtree == null) leftSubtree = new KdTreeNode(point, pointVector, null, null, (splitType+1)%splitCount);		    
+	    else leftSubtree.addChild(point, pointVector, splitCount);		
 	}
 	else{
-	    if(rightSubtree == null) rightSubtree = new KdTreeNode(point, null, null, (splitType+1)%featureSet.getFeatureCount());		    
-	    else rightSubtree.addChild(point, featureSet);		
+	    if(rightSubtree == null) rightSubtree = new KdTreeNode(point, pointVector, null, null, (splitType+1)%splitCount);		    
+	    else rightSubtree.addChild(point, pointVector, splitCount);		
 	}	
     }
     
@@ -38,9 +44,10 @@ public class KdTreeNode {
 	return splitType;
     }
     
-    public KdTreeNode(KnnPoint value, KdTreeNode leftSubtree,
+    public KdTreeNode(KnnPoint value, double[] vector, KdTreeNode leftSubtree,
 	    KdTreeNode rightSubtree, int splitType) {
 	this.value = value;
+	this.vector = vector;
 	this.leftSubtree = leftSubtree;
 	this.rightSubtree = rightSubtree;
 	this.splitType = splitType;
@@ -0,0 +1,133 @@
+package org.chargecar.algodev.knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.chargecar.algodev.predictors.Prediction;
+import org.chargecar.prize.util.PointFeatures;
+
+/**
+ * Answers many search points at once, e.g. every point of a trip. Queries
+ * are answered in Z-order of their latitude and longitude so consecutive
+ * searches walk the same part of the tree, one KnnQuery is reused for a
+ * whole run of queries, and runs can be spread over a thread pool. Results
+ * come back in the order of the search points and are the same as asking
+ * one point at a time.
+ */
+public class KnnBatch {
+    //queries per pool task
+    static final int CHUNK_SIZE = 256;
+    private static ForkJoinPool sharedPool;
+
+    private KnnBatch(){
+    }
+
+    /**
+     * Pool shared by the parallel tree builds and searches, one daemon
+     * thread per processor, created on first use.
+     */
+    public static synchronized ExecutorService sharedPool(){
+	if(sharedPool == null) sharedPool = new ForkJoinPool();
+	return sharedPool;
+    }
+
+    /**
+     * getNeighbors for every search point.
+     * @param pool threads to share the work over, null to run on the caller
+     */
+    public static List<List<Prediction>> getNeighbors(final KnnIndex index, final List<PointFeatures> searchPoints, final int k, final boolean trained, ExecutorService pool){
+	final int[] order = localityOrder(searchPoints);
+	final List<List<Prediction>> results = new ArrayList<List<Prediction>>(Collections.<List<Prediction>>nCopies(searchPoints.size(), null));
+	runChunks(order.length, CHUNK_SIZE, pool, new ChunkTask(){
+	    public void run(int from, int to){
+		KnnQuery query = new KnnQuery();
+		for(int i=from;i<to;i++){
+		    index.getNeighbors(searchPoints.get(order[i]), k, trained, query);
+		    results.set(order[i], query.getPredictions());
+		}
+	    }
+	});
+	return results;
+    }
+
+    /**
+     * Work over the positions [from,to), must only write results of its own
+     * positions.
+     */
+    interface ChunkTask {
+	public void run(int from, int to);
+    }
+
+    static void runChunks(int count, int chunkSize, ExecutorService pool, final ChunkTask task){
+	if(pool == null || count <= chunkSize){
+	    task.run(0, count);
+	    return;
+	}
+	List<Future<?>> futures = new ArrayList<Future<?>>();
+	for(int from = 0; from < count; from += chunkSize){
+	    final int start = from;
+	    final int end = Math.min(count, from + chunkSize);
+	    futures.add(pool.submit(new Runnable(){
+		public void run(){
+		    task.run(start, end);
+		}
+	    }));
+	}
+	try {
+	    for(Future<?> f : futures) f.get();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted during a batch search", e);
+	} catch (ExecutionException e) {
+	    throw new IllegalStateException("Batch search failed", e.getCause());
+	}
+    }
+
+    /**
+     * Indices of the search points sorted by the Z-order (Morton) code of
+     * their latitude and longitude within the batch's bounding box.
+     */
+    static int[] localityOrder(List<PointFeatures> searchPoints){
+	int n = searchPoints.size();
+	double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+	double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+	for(PointFeatures pf : searchPoints){
+	    minLat = Math.min(minLat, pf.getLatitude());
+	    maxLat = Math.max(maxLat, pf.getLatitude());
+	    minLon = Math.min(minLon, pf.getLongitude());
+	    maxLon = Math.max(maxLon, pf.getLongitude());
+	}
+	double latScale = maxLat > minLat ? 0xFFFF / (maxLat - minLat) : 0;
+	double lonScale = maxLon > minLon ? 0xFFFF / (maxLon - minLon) : 0;
+	//code in the high bits, index in the low bits, so a sort keeps ties stable
+	long[] keys = new long[n];
+	for(int i=0;i<n;i++){
+	    PointFeatures pf = searchPoints.get(i);
+	    long lat = (long)((pf.getLatitude() - minLat) * latScale);
+	    long lon = (long)((pf.getLongitude() - minLon) * lonScale);
+	    keys[i] = (interleave(lat) << 1 | interleave(lon)) << 31 | i;
+	}
+	Arrays.sort(keys);
+	int[] order = new int[n];
+	for(int i=0;i<n;i++){
+	    order[i] = (int)(keys[i] & Integer.MAX_VALUE);
+	}
+	return order;
+    }
+
+    //spreads the low 16 bits of x to the even bits
+    private static long interleave(long x){
+	x &= 0xFFFF;
+	x = (x | (x << 8)) & 0x00FF00FFL;
+	x = (x | (x << 4)) & 0x0F0F0F0FL;
+	x = (x | (x << 2)) & 0x33333333L;
+	x = (x | (x << 1)) & 0x55555555L;
+	return x;
+    }
+}
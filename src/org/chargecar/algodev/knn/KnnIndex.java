@@ -0,0 +1,25 @@
+package org.chargecar.algodev.knn;
+
+import java.util.List;
+
+import org.chargecar.algodev.predictors.Prediction;
+import org.chargecar.prize.util.PointFeatures;
+
+/**
+ * Nearest neighbour lookups over a driver's history, shared by the pointer
+ * based KdTree and the array backed trees so predictors can use either.
+ */
+public interface KnnIndex {
+    public Prediction getNeighbor(PointFeatures searchPoint);
+    public List<Prediction> getNeighbors(PointFeatures searchPoint, int k, List<Prediction> previousNeighbors, boolean trained);
+    public int countNodes();
+    /**
+     * Allocation free form of getNeighbors, results are read from the query.
+     */
+    public int getNeighbors(PointFeatures searchPoint, int k, boolean trained, KnnQuery query);
+    /**
+     * Plain search for the k nearest neighbours, one per trip, without the
+     * trimming done by getNeighbors.
+     */
+    public int searchNeighbors(PointFeatures searchPoint, int k, KnnQuery query);
+}
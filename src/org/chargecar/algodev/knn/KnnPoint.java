@@ -25,6 +25,10 @@ public class KnnPoint implements Serializable{
         this.features = features;
     }
     
+    /**
+     * Not read by the trees, searches keep distances in their KnnQuery.
+     * Kept so that serialized tables still load.
+     */
     public double getDistance(){
 	return distance;
     }
@@ -0,0 +1,390 @@
+package org.chargecar.algodev.knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.chargecar.algodev.predictors.Prediction;
+
+/**
+ * Reusable state for one nearest neighbour search: a bounded max-heap of
+ * primitive distances, trip ids and time indices (at most one neighbour per
+ * trip), the scratch per-axis bounds used for pruning and the query vector.
+ * For k above LINEAR_SCAN_MAX the trip already in the heap is found through
+ * an open addressing tripID to heap slot table instead of a scan.
+ * Arrays only grow when a larger k or feature count is requested, so a
+ * search through a warmed up KnnQuery allocates nothing.
+ *
+ * After a search the neighbours are sorted closest first and read through
+ * size()/getTripID(i)/getTimeIndex(i)/getWeight(i).
+ *
+ * A query can be made approximate with setApproximation(): far subtrees
+ * are only searched if they could hold a point (1+epsilon) times closer
+ * than the current k-th neighbour, and no far subtree is entered once
+ * maxVisits nodes (leaves for BucketKdTree) have been visited. Set this
+ * only on a query you own, never on forCurrentThread().
+ *
+ * A KnnQuery must only be used by one thread at a time. Trees keep no
+ * search state of their own, so threads sharing a tree each pass their
+ * own query, or use forCurrentThread().
+ */
+public class KnnQuery {
+    private static final ThreadLocal<KnnQuery> threadQueries = new ThreadLocal<KnnQuery>(){
+	@Override
+	protected KnnQuery initialValue(){
+	    return new KnnQuery();
+	}
+    };
+
+    //below this a scan of the heap beats hashing (measured with 100 to 3000 trips)
+    static final int LINEAR_SCAN_MAX = 128;
+
+    private double[] dists = new double[0];
+    private int[] tripIDs = new int[0];
+    private int[] timeIndices = new int[0];
+    private int capacity;
+
+    //linear probing table, entries are live when their stamp is the generation
+    private boolean useTable;
+    private int[] tableKeys = new int[0];
+    private int[] tableSlots = new int[0];
+    private int[] tableStamps = new int[0];
+    private int tableMask;
+    private int generation;
+    //table entry of each heap slot
+    private int[] entries = new int[0];
+    private int size;
+    private int first;
+    private int last;
+
+    private double epsilon;
+    private int maxVisits = Integer.MAX_VALUE;
+    private int visits;
+
+    private double[] vector = new double[0];
+    private double[] distSoFar = new double[0];
+    private double[] scratch = new double[0];
+    private final double[] probe = new double[2];
+    private int[] cellOrder = new int[0];
+    private double[] cellBounds = new double[0];
+
+    /**
+     * The query used by the convenience search methods on this thread.
+     */
+    public static KnnQuery forCurrentThread(){
+	return threadQueries.get();
+    }
+
+    /**
+     * @param epsilon allowed relative error of the k-th distance, 0 for exact
+     * @param maxVisits visits after which no further subtrees are searched,
+     * Integer.MAX_VALUE for no limit
+     */
+    public void setApproximation(double epsilon, int maxVisits){
+	if(epsilon < 0 || maxVisits < 1)
+	    throw new IllegalArgumentException("Invalid approximation: epsilon "+epsilon+", maxVisits "+maxVisits);
+	this.epsilon = epsilon;
+	this.maxVisits = maxVisits;
+    }
+
+    public void setExact(){
+	setApproximation(0, Integer.MAX_VALUE);
+    }
+
+    public boolean isExact(){
+	return epsilon == 0 && maxVisits == Integer.MAX_VALUE;
+    }
+
+    /**
+     * Nodes (leaves for BucketKdTree) visited by the last search.
+     */
+    public int getVisits(){
+	return visits;
+    }
+
+    void reset(int k, int splitCount){
+	if(k > dists.length){
+	    dists = new double[k];
+	    tripIDs = new int[k];
+	    timeIndices = new int[k];
+	}
+	if(splitCount > distSoFar.length){
+	    distSoFar = new double[splitCount];
+	}
+	for(int i=0;i<splitCount;i++){
+	    distSoFar[i] = 0;
+	}
+	capacity = k;
+	size = 0;
+	first = 0;
+	last = 0;
+	visits = 0;
+	useTable = k > LINEAR_SCAN_MAX;
+	if(useTable) resetTable(k);
+    }
+
+    private void resetTable(int k){
+	if(entries.length < k){
+	    entries = new int[k];
+	}
+	int length = Integer.highestOneBit(k) << 2;
+	if(length > tableKeys.length){
+	    tableKeys = new int[length];
+	    tableSlots = new int[length];
+	    tableStamps = new int[length];
+	    generation = 0;
+	}
+	tableMask = length - 1;
+	if(++generation == 0){
+	    Arrays.fill(tableStamps, 0);
+	    generation = 1;
+	}
+    }
+
+    private int home(int tripID){
+	int h = tripID * 0x9E3779B9;
+	return (h ^ (h >>> 16)) & tableMask;
+    }
+
+    private int find(int tripID){
+	for(int e = home(tripID); tableStamps[e] == generation; e = (e+1) & tableMask){
+	    if(tableKeys[e] == tripID) return e;
+	}
+	return -1;
+    }
+
+    private void insert(int tripID, int slot){
+	int e = home(tripID);
+	while(tableStamps[e] == generation) e = (e+1) & tableMask;
+	tableStamps[e] = generation;
+	tableKeys[e] = tripID;
+	tableSlots[e] = slot;
+	entries[slot] = e;
+    }
+
+    /**
+     * Removes entry e, shifting later entries of its probe run back so
+     * lookups never need tombstones.
+     */
+    private void delete(int e){
+	tableStamps[e] = generation - 1;
+	for(int next = (e+1) & tableMask; tableStamps[next] == generation; next = (next+1) & tableMask){
+	    int h = home(tableKeys[next]);
+	    //move next into the hole unless its home lies cyclically in (e, next]
+	    boolean stays = e <= next ? (e < h && h <= next) : (e < h || h <= next);
+	    if(stays) continue;
+	    tableKeys[e] = tableKeys[next];
+	    tableSlots[e] = tableSlots[next];
+	    tableStamps[e] = generation;
+	    entries[tableSlots[e]] = e;
+	    tableStamps[next] = generation - 1;
+	    e = next;
+	}
+    }
+
+    double[] getVector(int dimensions){
+	if(dimensions > vector.length){
+	    vector = new double[dimensions];
+	}
+	return vector;
+    }
+
+    /**
+     * Scratch distances for one leaf bucket.
+     */
+    double[] getScratch(int length){
+	if(length > scratch.length){
+	    scratch = new double[length];
+	}
+	return scratch;
+    }
+
+    /**
+     * Scratch latitude/longitude point for GridKdIndex cell distances.
+     */
+    double[] getProbe(){
+	return probe;
+    }
+
+    /**
+     * Scratch heap of GridKdIndex cells, ordered by cellBounds.
+     */
+    int[] getCellOrder(int length){
+	if(length > cellOrder.length){
+	    cellOrder = new int[length];
+	    cellBounds = new double[length];
+	}
+	return cellOrder;
+    }
+
+    double[] getCellBounds(){
+	return cellBounds;
+    }
+
+    double[] getDistSoFar(){
+	return distSoFar;
+    }
+
+    double bound(){
+	return size == capacity ? dists[0] : Double.MAX_VALUE;
+    }
+
+    /**
+     * Bound a far subtree must be within to be searched, bound() when exact.
+     */
+    double farBound(){
+	double bound = bound();
+	return epsilon == 0 ? bound : bound / (1+epsilon);
+    }
+
+    void visit(){
+	visits++;
+    }
+
+    boolean hasBudget(){
+	return visits < maxVisits;
+    }
+
+    /**
+     * Adds a candidate closer than bound(), keeping only the closest point
+     * of each trip.
+     */
+    void offer(double dist, int tripID, int timeIndex){
+	int i = indexOf(tripID);
+	if(i >= 0){
+	    if(dists[i] > dist){
+		dists[i] = dist;
+		timeIndices[i] = timeIndex;
+		siftDown(i, size);
+	    }
+	    return;
+	}
+	if(size < capacity){
+	    dists[size] = dist;
+	    tripIDs[size] = tripID;
+	    timeIndices[size] = timeIndex;
+	    if(useTable) insert(tripID, size);
+	    siftUp(size++);
+	}
+	else if(dist < dists[0]){
+	    if(useTable){
+		delete(entries[0]);
+		insert(tripID, 0);
+	    }
+	    dists[0] = dist;
+	    tripIDs[0] = tripID;
+	    timeIndices[0] = timeIndex;
+	    siftDown(0, size);
+	}
+    }
+
+    private int indexOf(int tripID){
+	if(useTable){
+	    int e = find(tripID);
+	    return e < 0 ? -1 : tableSlots[e];
+	}
+	for(int i=0;i<size;i++){
+	    if(tripIDs[i] == tripID) return i;
+	}
+	return -1;
+    }
+
+    /**
+     * Heap sorts the neighbours in place, closest first.
+     */
+    void finish(){
+	for(int end = size-1;end > 0;end--){
+	    exchange(0, end);
+	    siftDown(0, end);
+	}
+	first = 0;
+	last = size;
+    }
+
+    /**
+     * Drops one of the k+1 neighbours found by a trimmed search, see
+     * KdTree.getNeighbors.
+     */
+    void trim(boolean trained){
+	if(last == first) return;
+	if(trained && getWeight(0) > 99) //Remove best match -- perfect match of the search point
+	    first++;
+	else //remove worst match, only want K predictions
+	    last--;
+    }
+
+    public int size(){
+	return last - first;
+    }
+
+    public double getDistance(int i){
+	return dists[first+i];
+    }
+
+    public double getWeight(int i){
+	return 1/(dists[first+i]+0.01);
+    }
+
+    public int getTripID(int i){
+	return tripIDs[first+i];
+    }
+
+    public int getTimeIndex(int i){
+	return timeIndices[first+i];
+    }
+
+    public Prediction getPrediction(int i){
+	return new Prediction(getWeight(i), getTripID(i), getTimeIndex(i), null);
+    }
+
+    /**
+     * The neighbours as predictions, furthest first as they used to be
+     * polled from the neighbour queue.
+     */
+    public List<Prediction> getPredictions(){
+	List<Prediction> predictions = new ArrayList<Prediction>(size());
+	for(int i=size()-1;i>=0;i--){
+	    predictions.add(getPrediction(i));
+	}
+	return predictions;
+    }
+
+    private void siftUp(int i){
+	while(i > 0){
+	    int parent = (i-1) >>> 1;
+	    if(dists[parent] >= dists[i]) return;
+	    exchange(parent, i);
+	    i = parent;
+	}
+    }
+
+    private void siftDown(int i, int end){
+	while(true){
+	    int child = 2*i+1;
+	    if(child >= end) return;
+	    if(child+1 < end && dists[child+1] > dists[child]) child++;
+	    if(dists[i] >= dists[child]) return;
+	    exchange(i, child);
+	    i = child;
+	}
+    }
+
+    private void exchange(int x, int y){
+	double d = dists[x];
+	dists[x] = dists[y];
+	dists[y] = d;
+	int t = tripIDs[x];
+	tripIDs[x] = tripIDs[y];
+	tripIDs[y] = t;
+	t = timeIndices[x];
+	timeIndices[x] = timeIndices[y];
+	timeIndices[y] = t;
+	if(useTable){
+	    t = entries[x];
+	    entries[x] = entries[y];
+	    entries[y] = t;
+	    tableSlots[entries[x]] = x;
+	    tableSlots[entries[y]] = y;
+	}
+    }
+}
@@ -0,0 +1,313 @@
+package org.chargecar.algodev.knn;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.TimeZone;
+
+import org.chargecar.prize.util.PointFeatures;
+
+/**
+ * A driver's table as written by KnnTableTrainer: the means and sdevs rows
+ * the policies scale search points with, then the scaled points. The file
+ * is little endian and column-wise:
+ *
+ * header: magic "KNNT", version, point count, time zone id, means and sdevs
+ * rows (9 doubles and periodMS each), then one column per feature: latitude,
+ * longitude, elevation, bearing, planarDist, acceleration, speed,
+ * powerDemand, totalPowerUsed as doubles, the time as epoch millis, then
+ * periodMS, tripID and timeIndex as ints.
+ *
+ * open() maps the file with FileChannel.map and only decodes the header;
+ * getPoints() is a read only view that builds each KnnPoint from the
+ * mapping when it is asked for, so the trees can copy what they need into
+ * their own arrays without the whole table being held as objects. Tables
+ * serialized by older trainers (an ArrayList of KnnPoint with the means and
+ * sdevs rows first) still open, and main() converts them.
+ */
+public class KnnTable {
+    //"KNNT" read as a little endian int
+    static final int MAGIC = 0x544E4E4B;
+    static final int VERSION = 1;
+    //first bytes of a Java serialization stream
+    private static final int SERIAL_MAGIC = 0xACED;
+    private static final int DOUBLE_COLUMNS = 9;
+    //doubles, time, periodMS, tripID, timeIndex
+    private static final int BYTES_PER_POINT = DOUBLE_COLUMNS*8 + 8 + 4 + 4 + 4;
+    private static final int ROW_BYTES = DOUBLE_COLUMNS*8 + 8;
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final PointFeatures means;
+    private final PointFeatures sdevs;
+    private final int size;
+    private final TimeZone timeZone;
+    //mapped columns, null for a serialized table
+    private final ByteBuffer columns;
+    private final int dataStart;
+    private final List<KnnPoint> points;
+
+    private KnnTable(PointFeatures means, PointFeatures sdevs, List<KnnPoint> points){
+	this.means = means;
+	this.sdevs = sdevs;
+	this.size = points.size();
+	this.timeZone = null;
+	this.columns = null;
+	this.dataStart = 0;
+	this.points = points;
+    }
+
+    private KnnTable(ByteBuffer columns) throws IOException {
+	this.columns = columns;
+	if(columns.getInt(0) != MAGIC) throw new IOException("Not a knn table");
+	int version = columns.getInt(4);
+	if(version != VERSION) throw new IOException("Unsupported knn table version "+version);
+	this.size = columns.getInt(8);
+	int zoneLength = columns.getInt(12);
+	byte[] zone = new byte[zoneLength];
+	columns.position(16);
+	columns.get(zone);
+	this.timeZone = TimeZone.getTimeZone(new String(zone, UTF8));
+	int rowStart = align(16 + zoneLength);
+	this.means = readRow(columns, rowStart);
+	this.sdevs = readRow(columns, rowStart + ROW_BYTES);
+	this.dataStart = rowStart + 2*ROW_BYTES;
+	if(columns.capacity() < dataStart + (long)size*BYTES_PER_POINT)
+	    throw new IOException("Truncated knn table");
+	this.points = new PointView();
+    }
+
+    /**
+     * Opens a table in either format, mapping it when it is a columnar one.
+     */
+    public static KnnTable open(File file) throws IOException {
+	if(isSerialized(file)) return readSerialized(file);
+	return new KnnTable(LittleEndianFile.map(file));
+    }
+
+    /**
+     * True when the file was written with ObjectOutputStream by an older
+     * trainer.
+     */
+    public static boolean isSerialized(File file) throws IOException {
+	DataInputStream in = new DataInputStream(new FileInputStream(file));
+	try {
+	    return in.readUnsignedShort() == SERIAL_MAGIC;
+	} finally {
+	    in.close();
+	}
+    }
+
+    @SuppressWarnings("unchecked")
+    private static KnnTable readSerialized(File file) throws IOException {
+	ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
+	try {
+	    List<KnnPoint> knnList = (List<KnnPoint>)ois.readObject();
+	    if(knnList.size() < 2) throw new IOException("Serialized knn table has no means and sdevs rows");
+	    return new KnnTable(knnList.get(0).getFeatures(), knnList.get(1).getFeatures(),
+		    knnList.subList(2, knnList.size()));
+	} catch (ClassNotFoundException e) {
+	    throw new IOException("Could not read serialized knn table "+file, e);
+	} finally {
+	    ois.close();
+	}
+    }
+
+    /**
+     * Writes a columnar table. The time zone of the first timed point is
+     * stored so times read back with the same fields.
+     */
+    public static void write(File file, PointFeatures means, PointFeatures sdevs, List<KnnPoint> points) throws IOException {
+	int size = points.size();
+	if((long)size*BYTES_PER_POINT > Integer.MAX_VALUE - 4096)
+	    throw new IOException("Too many points for a knn table: "+size);
+	TimeZone zone = TimeZone.getDefault();
+	for(KnnPoint kp : points){
+	    if(kp.getFeatures().getTime() != null){
+		zone = kp.getFeatures().getTime().getTimeZone();
+		break;
+	    }
+	}
+	byte[] zoneID = zone.getID().getBytes(UTF8);
+
+	LittleEndianFile out = new LittleEndianFile(file);
+	try {
+	    out.putInt(MAGIC);
+	    out.putInt(VERSION);
+	    out.putInt(size);
+	    out.putInt(zoneID.length);
+	    out.put(zoneID);
+	    out.align();
+	    writeRow(out, means);
+	    writeRow(out, sdevs);
+	    for(int c=0;c<DOUBLE_COLUMNS;c++){
+		for(KnnPoint kp : points){
+		    out.putDouble(feature(kp.getFeatures(), c));
+		}
+	    }
+	    for(KnnPoint kp : points){
+		Calendar time = kp.getFeatures().getTime();
+		out.putLong(time == null ? NO_TIME : time.getTimeInMillis());
+	    }
+	    for(KnnPoint kp : points){
+		out.putInt(kp.getFeatures().getPeriodMS());
+	    }
+	    for(KnnPoint kp : points){
+		out.putInt(kp.getTripID());
+	    }
+	    for(KnnPoint kp : points){
+		out.putInt(kp.getTimeIndex());
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * Rewrites a serialized table in the columnar format. The source and
+     * destination may be the same file.
+     */
+    public static void convert(File source, File destination) throws IOException {
+	KnnTable table = readSerialized(source);
+	write(destination, table.getMeans(), table.getSdevs(), table.getPoints());
+    }
+
+    public PointFeatures getMeans(){
+	return means;
+    }
+
+    public PointFeatures getSdevs(){
+	return sdevs;
+    }
+
+    public int size(){
+	return size;
+    }
+
+    /**
+     * The table's points, without the means and sdevs rows. A mapped table
+     * builds a new KnnPoint on every get().
+     */
+    public List<KnnPoint> getPoints(){
+	return points;
+    }
+
+    public int getTripID(int i){
+	if(columns == null) return points.get(i).getTripID();
+	return columns.getInt(dataStart + size*(DOUBLE_COLUMNS*8 + 8 + 4) + 4*check(i));
+    }
+
+    public int getTimeIndex(int i){
+	if(columns == null) return points.get(i).getTimeIndex();
+	return columns.getInt(dataStart + size*(DOUBLE_COLUMNS*8 + 8 + 8) + 4*check(i));
+    }
+
+    public PointFeatures getFeatures(int i){
+	if(columns == null) return points.get(i).getFeatures();
+	check(i);
+	double[] f = new double[DOUBLE_COLUMNS];
+	for(int c=0;c<DOUBLE_COLUMNS;c++){
+	    f[c] = columns.getDouble(dataStart + 8*(c*size + i));
+	}
+	long millis = columns.getLong(dataStart + 8*(DOUBLE_COLUMNS*size + i));
+	int periodMS = columns.getInt(dataStart + size*(DOUBLE_COLUMNS*8 + 8) + 4*i);
+	Calendar time = null;
+	if(millis != NO_TIME){
+	    time = Calendar.getInstance(timeZone);
+	    time.setTimeInMillis(millis);
+	}
+	return new PointFeatures(f[0], f[1], f[2], f[3], f[4], f[5], f[6], f[7], f[8], periodMS, time);
+    }
+
+    private int check(int i){
+	if(i < 0 || i >= size) throw new IndexOutOfBoundsException("Point "+i+" of "+size);
+	return i;
+    }
+
+    private class PointView extends AbstractList<KnnPoint> implements RandomAccess {
+	@Override
+	public KnnPoint get(int i){
+	    return new KnnPoint(getFeatures(i), getTimeIndex(i), getTripID(i));
+	}
+
+	@Override
+	public int size(){
+	    return size;
+	}
+    }
+
+    private static int align(int offset){
+	return (offset + 7) & ~7;
+    }
+
+    private static double feature(PointFeatures pf, int column){
+	switch(column){
+	case 0: return pf.getLatitude();
+	case 1: return pf.getLongitude();
+	case 2: return pf.getElevation();
+	case 3: return pf.getBearing();
+	case 4: return pf.getPlanarDist();
+	case 5: return pf.getAcceleration();
+	case 6: return pf.getSpeed();
+	case 7: return pf.getPowerDemand();
+	case 8: return pf.getTotalPowerUsed();
+	default: throw new IllegalArgumentException("No feature column "+column);
+	}
+    }
+
+    private static void writeRow(LittleEndianFile out, PointFeatures row) throws IOException {
+	for(int c=0;c<DOUBLE_COLUMNS;c++){
+	    out.putDouble(feature(row, c));
+	}
+	out.putInt(row.getPeriodMS());
+	out.putInt(0);
+    }
+
+    private static PointFeatures readRow(ByteBuffer in, int offset){
+	double[] f = new double[DOUBLE_COLUMNS];
+	for(int c=0;c<DOUBLE_COLUMNS;c++){
+	    f[c] = in.getDouble(offset + 8*c);
+	}
+	int periodMS = in.getInt(offset + 8*DOUBLE_COLUMNS);
+	return new PointFeatures(f[0], f[1], f[2], f[3], f[4], f[5], f[6], f[7], f[8], periodMS, null);
+    }
+
+    /**
+     * Converts serialized .knn tables to the columnar format in place.
+     *
+     * e.g. java KnnTable "C:\ccpdata\knn"
+     */
+    public static void main(String[] args) throws IOException {
+	if (args == null || args.length < 1) {
+	    System.err.println("ERROR: Provide a .knn file or folder");
+	    System.exit(1);
+	}
+	File path = new File(args[0]);
+	List<File> tables = new ArrayList<File>();
+	if(path.isDirectory()){
+	    for(File f : path.listFiles()){
+		if(f.isFile() && f.getName().endsWith(".knn")) tables.add(f);
+	    }
+	}else{
+	    tables.add(path);
+	}
+	for(File table : tables){
+	    if(!isSerialized(table)){
+		System.out.println(table.getName()+" is already columnar.");
+		continue;
+	    }
+	    long start = System.currentTimeMillis();
+	    convert(table, table);
+	    System.out.println("Converted "+table.getName()+" in "+(System.currentTimeMillis()-start)+"ms");
+	}
+    }
+}
@@ -1,8 +1,6 @@
 package org.chargecar.algodev.knn;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -17,11 +15,21 @@ public class KnnTableTrainer implements Policy {
     List<KnnPoint> table;
     String currentDriver;
     final String knnFileFolderPath;
+    final boolean writeIndex;
     
     private final String shortName = "knntt";
     
     public KnnTableTrainer(String knnFileFolderPath){
+	this(knnFileFolderPath, false);
+    }
+
+    /**
+     * @param writeIndex also write the driver's GridKdIndex next to the
+     * table as driver.kdt, so policies can load it instead of building it
+     */
+    public KnnTableTrainer(String knnFileFolderPath, boolean writeIndex){
 	this.knnFileFolderPath = knnFileFolderPath+"/";
+	this.writeIndex = writeIndex;
     }    
 
     @Override
@@ -57,14 +65,18 @@ public class KnnTableTrainer implements Policy {
     public void writeTable(){
 	System.out.println("Writing table for "+currentDriver);
 	
-	FileOutputStream fos;
 	try {
-	    
 	    File knnTableFile = new File(this.knnFileFolderPath+currentDriver+".knn");
-	    knnTableFile.createNewFile();
-	    fos = new FileOutputStream(knnTableFile);
-	    ObjectOutputStream oos = new ObjectOutputStream(fos);
-	    oos.writeObject(table);
+	    //means and sdevs rows first, see scaleFeatures
+	    KnnTable.write(knnTableFile, table.get(0).getFeatures(), table.get(1).getFeatures(), table.subList(2, table.size()));
+	    File indexFile = new File(this.knnFileFolderPath+currentDriver+".kdt");
+	    if(writeIndex){
+		new GridKdIndex(table.subList(2, table.size()), new FullFeatureSet()).save(indexFile, knnTableFile);
+	    }
+	    else if(indexFile.exists()){
+		//would no longer match the table
+		indexFile.delete();
+	    }
 	} catch (Exception e) {
 	    e.printStackTrace();
 	}
@@ -0,0 +1,148 @@
+package org.chargecar.algodev.knn;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Buffered little endian writer for the binary knn and opt files, and
+ * map() to read them back.
+ */
+public class LittleEndianFile {
+    private final FileOutputStream fos;
+    private final FileChannel channel;
+    private final ByteBuffer out = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private long flushed;
+
+    public LittleEndianFile(File file) throws IOException {
+	this.fos = new FileOutputStream(file);
+	this.channel = fos.getChannel();
+    }
+
+    /**
+     * The whole file, read only, in little endian order.
+     */
+    public static ByteBuffer map(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = raf.getChannel();
+	    if(channel.size() > Integer.MAX_VALUE) throw new IOException(file+" is too large to map: "+channel.size()+" bytes");
+	    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+	} finally {
+	    raf.close();
+	}
+    }
+
+    public static double[] getDoubles(ByteBuffer in, int count){
+	double[] values = new double[count];
+	in.asDoubleBuffer().get(values);
+	in.position(in.position() + 8*count);
+	return values;
+    }
+
+    public static int[] getInts(ByteBuffer in, int count){
+	int[] values = new int[count];
+	in.asIntBuffer().get(values);
+	in.position(in.position() + 4*count);
+	return values;
+    }
+
+    public static float[] getFloats(ByteBuffer in, int count){
+	float[] values = new float[count];
+	in.asFloatBuffer().get(values);
+	in.position(in.position() + 4*count);
+	return values;
+    }
+
+    public static short[] getShorts(ByteBuffer in, int count){
+	short[] values = new short[count];
+	in.asShortBuffer().get(values);
+	in.position(in.position() + 2*count);
+	return values;
+    }
+
+    public long position(){
+	return flushed + out.position();
+    }
+
+    public void putInt(int value) throws IOException {
+	ensure(4);
+	out.putInt(value);
+    }
+
+    public void putLong(long value) throws IOException {
+	ensure(8);
+	out.putLong(value);
+    }
+
+    public void putShort(short value) throws IOException {
+	ensure(2);
+	out.putShort(value);
+    }
+
+    public void putFloat(float value) throws IOException {
+	ensure(4);
+	out.putFloat(value);
+    }
+
+    public void putDouble(double value) throws IOException {
+	ensure(8);
+	out.putDouble(value);
+    }
+
+    public void put(byte[] bytes) throws IOException {
+	for(byte b : bytes){
+	    ensure(1);
+	    out.put(b);
+	}
+    }
+
+    public void putInts(int[] values) throws IOException {
+	for(int v : values) putInt(v);
+    }
+
+    public void putShorts(short[] values) throws IOException {
+	for(short v : values) putShort(v);
+    }
+
+    public void putFloats(float[] values) throws IOException {
+	for(float v : values) putFloat(v);
+    }
+
+    public void putDoubles(double[] values) throws IOException {
+	for(double v : values) putDouble(v);
+    }
+
+    /**
+     * Pads with zeros to a multiple of 8 bytes.
+     */
+    public void align() throws IOException {
+	while(position() % 8 != 0){
+	    ensure(1);
+	    out.put((byte)0);
+	}
+    }
+
+    public void close() throws IOException {
+	try {
+	    flush();
+	} finally {
+	    fos.close();
+	}
+    }
+
+    private void ensure(int bytes) throws IOException {
+	if(out.remaining() < bytes) flush();
+    }
+
+    private void flush() throws IOException {
+	out.flip();
+	flushed += out.remaining();
+	while(out.hasRemaining()) channel.write(out);
+	out.clear();
+    }
+}
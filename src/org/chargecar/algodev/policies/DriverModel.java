@@ -0,0 +1,63 @@
+package org.chargecar.algodev.policies;
+
+import java.util.Map;
+
+import org.chargecar.algodev.controllers.OptTable;
+import org.chargecar.algodev.controllers.ValueFunction;
+import org.chargecar.algodev.predictors.Predictor;
+import org.chargecar.prize.util.PointFeatures;
+
+/**
+ * What a policy loads for one driver: the neighbour predictor over the
+ * .knn table with the table's means and sdevs, and the .opt value
+ * functions. Either part may be null when a policy does not use it.
+ */
+public class DriverModel {
+    private final Predictor predictor;
+    private final PointFeatures means;
+    private final PointFeatures sdevs;
+    private final long predictorBytes;
+    private final Map<Integer, double[][]> optMap;
+
+    /**
+     * @param predictorBytes approximate heap bytes of the predictor
+     */
+    public DriverModel(Predictor predictor, PointFeatures means, PointFeatures sdevs, long predictorBytes, Map<Integer, double[][]> optMap){
+	this.predictor = predictor;
+	this.means = means;
+	this.sdevs = sdevs;
+	this.predictorBytes = predictorBytes;
+	this.optMap = optMap;
+    }
+
+    public Predictor getPredictor(){
+	return predictor;
+    }
+
+    public PointFeatures getMeans(){
+	return means;
+    }
+
+    public PointFeatures getSdevs(){
+	return sdevs;
+    }
+
+    public Map<Integer, double[][]> getOptMap(){
+	return optMap;
+    }
+
+    /**
+     * Approximate heap bytes. A mapped OptTable reads values in place, so
+     * it only counts its directory and the row layout of the trips used.
+     */
+    public long getMemoryBytes(){
+	long bytes = predictorBytes;
+	if(optMap instanceof OptTable){
+	    bytes += ((OptTable)optMap).getMemoryBytes();
+	}
+	else if(optMap != null){
+	    for(double[][] values : optMap.values()) bytes += ValueFunction.of(values).getMemoryBytes();
+	}
+	return bytes;
+    }
+}
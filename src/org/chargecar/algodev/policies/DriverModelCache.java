@@ -0,0 +1,263 @@
+package org.chargecar.algodev.policies;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps recently used drivers' models loaded, so a policy switching back
+ * to a driver does not read and build its files again. Models are kept by
+ * kind, a string naming the policy and whatever it builds its models
+ * from, and driver, so every policy can share one cache and one memory
+ * budget. Models are evicted least recently used first once their memory
+ * estimates add up to more than the capacity; the model each kind last
+ * asked for is always kept. prefetch() loads a driver on a background
+ * thread ahead of its first trip.
+ */
+public class DriverModelCache {
+    public interface Loader {
+	public DriverModel load(String driver) throws Exception;
+    }
+
+    //a quarter of the maximum heap, shared by every policy
+    private static final DriverModelCache shared = new DriverModelCache(Runtime.getRuntime().maxMemory()/4);
+
+    private final long capacityBytes;
+    private final LinkedHashMap<Key, Entry> models = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final Map<Key, Future<DriverModel>> loading = new HashMap<Key, Future<DriverModel>>();
+    //the model each kind is using, never evicted
+    private final Map<String, Key> current = new HashMap<String, Key>();
+    private long totalBytes;
+    private ExecutorService prefetcher;
+    private long hits;
+    private long misses;
+    private long prefetchHits;
+    private long evictions;
+
+    public DriverModelCache(long capacityBytes){
+	this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * The cache the policies share.
+     */
+    public static DriverModelCache getShared(){
+	return shared;
+    }
+
+    /**
+     * The driver's model, from the cache, from a load under way, or loaded
+     * on this thread. It stays cached while it is the kind's current model.
+     */
+    public DriverModel get(String kind, String driver, Loader loader) throws IOException {
+	Key key = new Key(kind, driver);
+	Future<DriverModel> pending;
+	boolean own = false;
+	synchronized(this){
+	    current.put(kind, key);
+	    Entry entry = models.get(key);
+	    if(entry != null){
+		hits++;
+		//a mapped .opt table grows as trips are used
+		long bytes = entry.model.getMemoryBytes();
+		totalBytes += bytes - entry.bytes;
+		entry.bytes = bytes;
+		evict();
+		return entry.model;
+	    }
+	    pending = loading.get(key);
+	    if(pending == null){
+		misses++;
+		pending = newLoad(key, loader);
+		loading.put(key, pending);
+		own = true;
+	    }
+	    else prefetchHits++;
+	}
+	if(own) ((FutureTask<DriverModel>)pending).run();
+	try {
+	    return pending.get();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted while loading the model of "+driver, e);
+	} catch (ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if(!own){
+		System.out.println("Prefetch of "+driver+" failed, loading again: "+cause);
+		return get(kind, driver, loader);
+	    }
+	    if(cause instanceof IOException) throw (IOException)cause;
+	    throw new IOException("Could not load the model of "+driver, cause);
+	}
+    }
+
+    /**
+     * Starts loading the driver's model in the background if it is neither
+     * cached nor already loading. Failures are printed and the driver is
+     * loaded again by get().
+     */
+    public synchronized void prefetch(String kind, String driver, Loader loader){
+	Key key = new Key(kind, driver);
+	if(models.containsKey(key) || loading.containsKey(key)) return;
+	if(prefetcher == null){
+	    prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory(){
+		public Thread newThread(Runnable r){
+		    Thread thread = new Thread(r, "driver model prefetch");
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+	}
+	FutureTask<DriverModel> load = newLoad(key, loader);
+	loading.put(key, load);
+	prefetcher.execute(load);
+    }
+
+    //a load that caches its model when done, unless it was dropped meanwhile
+    private FutureTask<DriverModel> newLoad(final Key key, final Loader loader){
+	return new FutureTask<DriverModel>(new Callable<DriverModel>(){
+	    public DriverModel call() throws Exception {
+		return loader.load(key.driver);
+	    }
+	}){
+	    @Override
+	    protected void done(){
+		synchronized(DriverModelCache.this){
+		    if(loading.get(key) != this) return;
+		    loading.remove(key);
+		    try {
+			Entry entry = new Entry(get());
+			models.put(key, entry);
+			totalBytes += entry.bytes;
+			evict();
+		    } catch (Exception e) {
+			//reported by get()
+		    }
+		}
+	    }
+	};
+    }
+
+    //drops least recently used models no kind is using until under capacity
+    private void evict(){
+	Iterator<Map.Entry<Key, Entry>> it = models.entrySet().iterator();
+	while(totalBytes > capacityBytes && it.hasNext()){
+	    Map.Entry<Key, Entry> entry = it.next();
+	    if(current.containsValue(entry.getKey())) continue;
+	    totalBytes -= entry.getValue().bytes;
+	    it.remove();
+	    evictions++;
+	}
+    }
+
+    /**
+     * Estimated heap bytes of the cached models, as of when each was last
+     * used.
+     */
+    public synchronized long getMemoryBytes(){
+	return totalBytes;
+    }
+
+    public synchronized boolean contains(String kind, String driver){
+	return models.containsKey(new Key(kind, driver));
+    }
+
+    public synchronized int size(){
+	return models.size();
+    }
+
+    public synchronized long getHits(){
+	return hits;
+    }
+
+    public synchronized long getMisses(){
+	return misses;
+    }
+
+    /**
+     * get() calls answered by a prefetch that was still loading.
+     */
+    public synchronized long getPrefetchHits(){
+	return prefetchHits;
+    }
+
+    public synchronized long getEvictions(){
+	return evictions;
+    }
+
+    /**
+     * Drops the kind's models. Its loads under way are forgotten, their
+     * results are not stored.
+     */
+    public synchronized void clear(String kind){
+	Iterator<Map.Entry<Key, Entry>> it = models.entrySet().iterator();
+	while(it.hasNext()){
+	    Map.Entry<Key, Entry> entry = it.next();
+	    if(!entry.getKey().kind.equals(kind)) continue;
+	    totalBytes -= entry.getValue().bytes;
+	    it.remove();
+	}
+	Iterator<Key> keys = loading.keySet().iterator();
+	while(keys.hasNext()){
+	    if(keys.next().kind.equals(kind)) keys.remove();
+	}
+	current.remove(kind);
+    }
+
+    /**
+     * Drops every model. Loads under way are forgotten, their results are
+     * not stored.
+     */
+    public synchronized void clear(){
+	models.clear();
+	loading.clear();
+	current.clear();
+	totalBytes = 0;
+    }
+
+    public synchronized String toString(){
+	return "Driver models: "+models.size()+" cached, "+(totalBytes/(1024*1024))+"MB, "
+		+hits+" hits, "+prefetchHits+" prefetch hits, "+misses+" misses, "+evictions+" evictions";
+    }
+
+    private static class Entry {
+	final DriverModel model;
+	long bytes;
+
+	Entry(DriverModel model){
+	    this.model = model;
+	    this.bytes = model.getMemoryBytes();
+	}
+    }
+
+    private static class Key {
+	final String kind;
+	final String driver;
+
+	Key(String kind, String driver){
+	    this.kind = kind;
+	    this.driver = driver;
+	}
+
+	@Override
+	public boolean equals(Object o){
+	    if(!(o instanceof Key)) return false;
+	    Key other = (Key)o;
+	    return kind.equals(other.kind) && driver.equals(other.driver);
+	}
+
+	@Override
+	public int hashCode(){
+	    return 31*kind.hashCode() + driver.hashCode();
+	}
+    }
+}
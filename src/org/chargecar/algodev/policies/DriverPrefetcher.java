@@ -0,0 +1,13 @@
+package org.chargecar.algodev.policies;
+
+/**
+ * A policy that can start loading a driver's models before that driver's
+ * first beginTrip, e.g. while a simulator is still running the previous
+ * driver's trips.
+ */
+public interface DriverPrefetcher {
+    /**
+     * Starts loading in the background and returns at once.
+     */
+    public void prefetch(String driver);
+}
@@ -2,18 +2,17 @@ package org.chargecar.algodev.policies;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
 
 import org.chargecar.algodev.controllers.Controller;
 import org.chargecar.algodev.controllers.DPPolyController;
+import org.chargecar.algodev.controllers.OptTable;
 import org.chargecar.algodev.knn.FullFeatureSet;
 import org.chargecar.algodev.knn.KnnPoint;
+import org.chargecar.algodev.knn.KnnTable;
 import org.chargecar.algodev.predictors.Prediction;
 import org.chargecar.algodev.predictors.Predictor;
 import org.chargecar.algodev.predictors.knn.KnnDistPredictor;
@@ -66,27 +65,20 @@ public class KnnDistPolyPolicy implements Policy {
 		System.out.println("New driver: "+driver);
 		currentDriver = driver;
 		
-		FileInputStream fis = new FileInputStream(currentFile);
-		ObjectInputStream ois = new ObjectInputStream(fis);
-		List<KnnPoint> knnList = (ArrayList<KnnPoint>)ois.readObject();
+		KnnTable table = KnnTable.open(currentFile);
+		List<KnnPoint> knnList = table.getPoints();
 		System.out.println("Table loaded. "+knnList.size()+" points. Building trees... ");
-		means = knnList.get(0).getFeatures();
-		sdevs = knnList.get(1).getFeatures();
-		knnList.remove(1);
-		knnList.remove(0);
+		means = table.getMeans();
+		sdevs = table.getSdevs();
 		knnPredictor = new KnnDistPredictor(knnList, new FullFeatureSet(),neighbors, true);
 		System.out.println("Trees built.");
-		ois.close();
-		fis.close();
 		
 		
 		//load controller map		
 		currentFile = new File(this.optFileFolderPath,driver+".opt");
 		currentDriver = driver;
 		this.controller = null;
-		fis = new FileInputStream(currentFile);
-		ois = new ObjectInputStream(fis);
-		Map<Integer, double[][]> optMap = (Map<Integer, double[][]>)ois.readObject();
+		Map<Integer, double[][]> optMap = OptTable.open(currentFile);
 		System.out.println("Polynomial Coefficients loaded. "+optMap.size()+" trips.");
 		controller = new DPPolyController(controlsSet, optMap); 
 		System.out.println("Controller loaded.");		
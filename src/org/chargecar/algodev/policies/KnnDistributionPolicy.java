@@ -2,18 +2,18 @@ package org.chargecar.algodev.policies;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
 
 import org.chargecar.algodev.controllers.Controller;
 import org.chargecar.algodev.controllers.DPOptController;
+import org.chargecar.algodev.controllers.OptTable;
+import org.chargecar.algodev.knn.GridKdIndex;
 import org.chargecar.algodev.knn.FullFeatureSet;
 import org.chargecar.algodev.knn.KnnPoint;
+import org.chargecar.algodev.knn.KnnTable;
 import org.chargecar.algodev.predictors.Prediction;
 import org.chargecar.algodev.predictors.Predictor;
 import org.chargecar.algodev.predictors.knn.KnnDistPredictor;
@@ -26,7 +26,7 @@ import org.chargecar.prize.util.Trip;
 
 import org.chargecar.prize.util.TripFeatures;
 
-public class KnnDistributionPolicy implements Policy {
+public class KnnDistributionPolicy implements Policy, DriverPrefetcher {
     
     protected Predictor knnPredictor;
     protected Controller controller;
@@ -44,6 +44,12 @@ public class KnnDistributionPolicy implements Policy {
     private final File knnFileFolderPath;
     private File optFileFolderPath;
     private final boolean trained;
+    private final DriverModelCache models = DriverModelCache.getShared();
+    private final DriverModelCache.Loader loader = new DriverModelCache.Loader(){
+	public DriverModel load(String driver) throws Exception {
+	    return loadModel(driver);
+	}
+    };
     
     public KnnDistributionPolicy(String knnFileFolderPath, String optFileFolderPath, int neighbors, boolean trained){
 	this.knnFileFolderPath = new File(knnFileFolderPath);
@@ -57,10 +63,22 @@ public class KnnDistributionPolicy implements Policy {
     }
     
     public void setOptPath(String optPath){
+	this.models.clear(getModelKind());
 	this.optFileFolderPath = new File(optPath);
 	this.optFileFolderPath.mkdirs();
 	this.currentDriver = null;
     }
+
+    /**
+     * The cache shared by all policies, see DriverModelCache.prefetch.
+     */
+    public DriverModelCache getModelCache(){
+	return models;
+    }
+
+    public void prefetch(String driver){
+	models.prefetch(getModelKind(), driver, loader);
+    }
     
     @Override
     public void beginTrip(TripFeatures tripFeatures, BatteryModel batteryClone,
@@ -73,42 +91,59 @@ public class KnnDistributionPolicy implements Policy {
 	    try {
 		this.controller = null;
 		this.knnPredictor = null;
-		//load knn tree
-		File currentFile = new File(this.knnFileFolderPath,driver+".knn");
 		System.out.println("New driver: "+driver);
 		currentDriver = driver;
-		
-		FileInputStream fis = new FileInputStream(currentFile);
-		ObjectInputStream ois = new ObjectInputStream(fis);
-		List<KnnPoint> knnList = (ArrayList<KnnPoint>)ois.readObject();
-		System.out.println("Table loaded. "+knnList.size()+" points. Building trees... ");
-		means = knnList.get(0).getFeatures();
-		sdevs = knnList.get(1).getFeatures();
-		knnList.remove(1);
-		knnList.remove(0);
-		//TODO Change back to TRUE
-		knnPredictor = new KnnDistPredictor(knnList, new FullFeatureSet(),neighbors, trained);
-		System.out.println("Trees built.");
-		ois.close();
-		fis.close();
-		
-		
-		//load controller map		
-		currentFile = new File(this.optFileFolderPath,driver+".opt");
-		currentDriver = driver;
-		this.controller = null;
-		fis = new FileInputStream(currentFile);
-		ois = new ObjectInputStream(fis);
-		Map<Integer, double[][]> optMap = (Map<Integer, double[][]>)ois.readObject();
-		System.out.println("Graph loaded. "+optMap.size()+" trips.");
-		controller = new DPOptController(controlsSet, optMap, null); 
-		System.out.println("Controller loaded.");		
+		DriverModel model = models.get(getModelKind(), driver, loader);
+		means = model.getMeans();
+		sdevs = model.getSdevs();
+		knnPredictor = model.getPredictor();
+		controller = new DPOptController(controlsSet, model.getOptMap(), null); 
 	    } catch (Exception e) {		
 		e.printStackTrace();
 	    }
 	}
 	
     }
+
+    //what loadModel builds from, models are cached per kind and driver
+    private String getModelKind(){
+	return shortName+" "+knnFileFolderPath+" "+optFileFolderPath+" k="+neighbors+" trained="+trained;
+    }
+
+    private DriverModel loadModel(String driver) throws IOException {
+	//load knn tree
+	File currentFile = new File(this.knnFileFolderPath,driver+".knn");
+	KnnTable table = KnnTable.open(currentFile);
+	List<KnnPoint> knnList = table.getPoints();
+	System.out.println("Table loaded. "+knnList.size()+" points. Building trees... ");
+	//TODO Change back to TRUE
+	GridKdIndex index = loadIndex(driver, currentFile, knnList);
+	Predictor predictor = new KnnDistPredictor(index,neighbors, trained);
+	System.out.println("Trees built.");
+
+	//load controller map		
+	currentFile = new File(this.optFileFolderPath,driver+".opt");
+	Map<Integer, double[][]> optMap = OptTable.open(currentFile);
+	System.out.println("Graph loaded. "+optMap.size()+" trips.");
+	return new DriverModel(predictor, table.getMeans(), table.getSdevs(), index.getMemoryBytes(), optMap);
+    }
+
+    /**
+     * The index KnnTableTrainer saved next to the table, or a new one when
+     * there is none or it does not match the table.
+     */
+    private GridKdIndex loadIndex(String driver, File tableFile, List<KnnPoint> knnList){
+	FullFeatureSet featureSet = new FullFeatureSet();
+	File indexFile = new File(this.knnFileFolderPath,driver+".kdt");
+	if(indexFile.exists()){
+	    try {
+		return GridKdIndex.load(indexFile, featureSet, tableFile, knnList.size());
+	    } catch (IOException e) {
+		System.out.println("Rebuilding index: "+e.getMessage());
+	    }
+	}
+	return new GridKdIndex(knnList, featureSet);
+    }
     
     @Override
     public PowerFlows calculatePowerFlows(PointFeatures pf) {
@@ -205,6 +240,7 @@ public class KnnDistributionPolicy implements Policy {
     @Override
     public void clearState() {
 	this.currentDriver = null;
+	this.models.clear(getModelKind());
 	this.knnPredictor = null;
 	this.controller = null;
 	this.means = null;
@@ -2,18 +2,18 @@ package org.chargecar.algodev.policies;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
 
 import org.chargecar.algodev.controllers.Controller;
 import org.chargecar.algodev.controllers.DPOptController;
+import org.chargecar.algodev.controllers.OptTable;
 import org.chargecar.algodev.knn.FullFeatureSet;
+import org.chargecar.algodev.knn.KnnBatch;
 import org.chargecar.algodev.knn.KnnPoint;
+import org.chargecar.algodev.knn.KnnTable;
 import org.chargecar.algodev.predictors.Prediction;
 import org.chargecar.algodev.predictors.Predictor;
 import org.chargecar.algodev.predictors.knn.KnnDistPredictor;
@@ -27,7 +27,7 @@ import org.chargecar.prize.util.Trip;
 
 import org.chargecar.prize.util.TripFeatures;
 
-public class KnnForestMMDPPolicy implements Policy {
+public class KnnForestMMDPPolicy implements Policy, DriverPrefetcher {
     
     protected Predictor knnPredictor;
     protected Controller controller;
@@ -45,6 +45,15 @@ public class KnnForestMMDPPolicy implements Policy {
     private final File knnFileFolderPath;
     private File optFileFolderPath;
     private final boolean trained;
+    private boolean parallelExperts;
+    //rough heap cost of a KdTree point with its KnnPoint, PointFeatures and Calendar
+    private static final long KD_TREE_BYTES_PER_POINT = 800;
+    private final DriverModelCache models = DriverModelCache.getShared();
+    private final DriverModelCache.Loader loader = new DriverModelCache.Loader(){
+	public DriverModel load(String driver) throws Exception {
+	    return loadModel(driver);
+	}
+    };
     
     public KnnForestMMDPPolicy(String knnFileFolderPath, String optFileFolderPath, int neighbors, boolean trained){
 	this.knnFileFolderPath = new File(knnFileFolderPath);
@@ -56,12 +65,31 @@ public class KnnForestMMDPPolicy implements Policy {
     public void setNeighbors(int k){
 	this.neighbors = k;
     }
+
+    /**
+     * Search the per trip experts in parallel on the shared knn pool.
+     */
+    public void setParallelExperts(boolean parallelExperts){
+	this.parallelExperts = parallelExperts;
+    }
     
     public void setOptPath(String optPath){
+	this.models.clear(getModelKind());
 	this.optFileFolderPath = new File(optPath);
 	this.optFileFolderPath.mkdirs();
 	this.currentDriver = null;
     }
+
+    /**
+     * The cache shared by all policies, see DriverModelCache.prefetch.
+     */
+    public DriverModelCache getModelCache(){
+	return models;
+    }
+
+    public void prefetch(String driver){
+	models.prefetch(getModelKind(), driver, loader);
+    }
     
     @Override
     public void beginTrip(TripFeatures tripFeatures, BatteryModel batteryClone,
@@ -74,41 +102,42 @@ public class KnnForestMMDPPolicy implements Policy {
 	    try {
 		this.controller = null;
 		this.knnPredictor = null;
-		//load knn forest
-		File currentFile = new File(this.knnFileFolderPath,driver+".knn");
 		System.out.println("New driver: "+driver);
 		currentDriver = driver;
-		
-		FileInputStream fis = new FileInputStream(currentFile);
-		ObjectInputStream ois = new ObjectInputStream(fis);
-		List<KnnPoint> knnList = (ArrayList<KnnPoint>)ois.readObject();
-		System.out.println("Table loaded. "+knnList.size()+" points. Building trees... ");
-		means = knnList.get(0).getFeatures();
-		sdevs = knnList.get(1).getFeatures();
-		knnList.remove(1);
-		knnList.remove(0);
-		knnPredictor = new KnnForestPredictor(knnList, new FullFeatureSet(), trained);
-		System.out.println("Trees built.");
-		ois.close();
-		fis.close();
-		
-		
-		//load controller map		
-		currentFile = new File(this.optFileFolderPath,driver+".opt");
-		currentDriver = driver;
-		this.controller = null;
-		fis = new FileInputStream(currentFile);
-		ois = new ObjectInputStream(fis);
-		Map<Integer, double[][]> optMap = (Map<Integer, double[][]>)ois.readObject();
-		System.out.println("Graph loaded. "+optMap.size()+" trips.");
-		controller = new DPOptController(controlsSet, optMap, null); 
-		System.out.println("Controller loaded.");		
+		DriverModel model = models.get(getModelKind(), driver, loader);
+		means = model.getMeans();
+		sdevs = model.getSdevs();
+		KnnForestPredictor forestPredictor = (KnnForestPredictor)model.getPredictor();
+		forestPredictor.setPool(parallelExperts ? KnnBatch.sharedPool() : null);
+		knnPredictor = forestPredictor;
+		controller = new DPOptController(controlsSet, model.getOptMap(), null); 
 	    } catch (Exception e) {		
 		e.printStackTrace();
 	    }
 	}
 	
     }
+
+    //what loadModel builds from, models are cached per kind and driver
+    private String getModelKind(){
+	return shortName+" "+knnFileFolderPath+" "+optFileFolderPath+" trained="+trained+" parallel="+parallelExperts;
+    }
+
+    private DriverModel loadModel(String driver) throws IOException {
+	//load knn forest
+	File currentFile = new File(this.knnFileFolderPath,driver+".knn");
+	KnnTable table = KnnTable.open(currentFile);
+	List<KnnPoint> knnList = table.getPoints();
+	System.out.println("Table loaded. "+knnList.size()+" points. Building trees... ");
+	KnnForestPredictor forestPredictor = new KnnForestPredictor(knnList, new FullFeatureSet(), trained);
+	System.out.println("Trees built.");
+
+	//load controller map		
+	currentFile = new File(this.optFileFolderPath,driver+".opt");
+	Map<Integer, double[][]> optMap = OptTable.open(currentFile);
+	System.out.println("Graph loaded. "+optMap.size()+" trips.");
+	return new DriverModel(forestPredictor, table.getMeans(), table.getSdevs(), knnList.size()*KD_TREE_BYTES_PER_POINT, optMap);
+    }
     
     @Override
     public PowerFlows calculatePowerFlows(PointFeatures pf) {
@@ -204,6 +233,7 @@ public class KnnForestMMDPPolicy implements Policy {
     @Override
     public void clearState() {
 	this.currentDriver = null;
+	this.models.clear(getModelKind());
 	this.knnPredictor = null;
 	this.controller = null;
 	this.means = null;
@@ -37,6 +37,8 @@ public class KnnMMDPLive implements Policy {
     private final int neighbors;
     private final int stateCount;
     private final double discountFactor;
+    private final double epsilon;
+    private final int maxVisits;
     
     private String currentDriver;
     protected BatteryModel modelCap;
@@ -45,10 +47,19 @@ public class KnnMMDPLive implements Policy {
     private final String shortName = "KnnMMDPLive";
     
     public KnnMMDPLive(int neighbors, int stateCount, double discountFactor){
+	this(neighbors, stateCount, discountFactor, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Approximate neighbour search to bound the time spent per step, see
+     * KnnQuery.setApproximation.
+     */
+    public KnnMMDPLive(int neighbors, int stateCount, double discountFactor, double epsilon, int maxVisits){
 	this.neighbors = neighbors;
 	this.stateCount = stateCount;
 	this.discountFactor = discountFactor;
-	
+	this.epsilon = epsilon;
+	this.maxVisits = maxVisits;
     }
     
     @Override
@@ -66,7 +77,9 @@ public class KnnMMDPLive implements Policy {
 		
 		System.out.println("New driver: "+driver);
 		currentDriver = driver;		
-		knnPredictor = new KnnDistPredictor(null, new FullFeatureSet(),neighbors, false);
+		KnnDistPredictor predictor = new KnnDistPredictor(null, new FullFeatureSet(),neighbors, false);
+		predictor.setApproximation(epsilon, maxVisits);
+		knnPredictor = predictor;
 		
 		//load controller map		
 		Map<Integer, double[][]> optMap = new HashMap<Integer, double[][]>();
@@ -1,14 +1,13 @@
 package org.chargecar.algodev.policies;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.chargecar.algodev.controllers.MDPPolynomial;
+import org.chargecar.algodev.controllers.OptTable;
 import org.chargecar.prize.battery.BatteryModel;
 import org.chargecar.prize.policies.Policy;
 import org.chargecar.prize.util.PointFeatures;
@@ -62,15 +61,10 @@ public class MDPPolyTrainer implements Policy {
     public void writeTable(){
 	System.out.println("Writing table for "+currentDriver);
 	
-	FileOutputStream fos;
 	try {
-	    
 	    File knnTableFile = new File(this.optFileFolderPath+currentDriver+".opt");
 	    knnTableFile.getParentFile().mkdirs();
-	    knnTableFile.createNewFile();
-	    fos = new FileOutputStream(knnTableFile);
-	    ObjectOutputStream oos = new ObjectOutputStream(fos);
-	    oos.writeObject(tripMap);
+	    OptTable.write(knnTableFile, tripMap);
 	} catch (Exception e) {
 	    e.printStackTrace();
 	}
@@ -1,12 +1,12 @@
 package org.chargecar.algodev.policies;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.chargecar.algodev.controllers.MDPValueGraph;
+import org.chargecar.algodev.controllers.OptTable;
+import org.chargecar.algodev.controllers.ValueFunction;
 import org.chargecar.prize.battery.BatteryModel;
 import org.chargecar.prize.policies.Policy;
 import org.chargecar.prize.util.PointFeatures;
@@ -23,8 +23,18 @@ public class MDPTrainer implements Policy {
     private Map<Integer, double[][]> tripMap;
     private final String shortName = "dpgtt";
     private final BatteryModel cap;
+    private final int encoding;
     
     public MDPTrainer(String optFileFolderPath, BatteryModel cap, int stateCount){
+	this(optFileFolderPath, cap, stateCount, ValueFunction.DOUBLE);
+    }
+
+    /**
+     * @param encoding how the .opt file stores values, ValueFunction.DOUBLE,
+     * FLOAT or SCALED16
+     */
+    public MDPTrainer(String optFileFolderPath, BatteryModel cap, int stateCount, int encoding){
+	this.encoding = encoding;
 	tripMap = new HashMap<Integer,double[][]>();
 	this.optFileFolderPath = optFileFolderPath+"/";
 	this.cap = cap.createClone();
@@ -60,15 +70,10 @@ public class MDPTrainer implements Policy {
     public void writeTable(){
 	System.out.println("Writing table for "+currentDriver);
 	
-	FileOutputStream fos;
 	try {
-	    
 	    File knnTableFile = new File(this.optFileFolderPath+currentDriver+".opt");
 	    knnTableFile.getParentFile().mkdirs();
-	    knnTableFile.createNewFile();
-	    fos = new FileOutputStream(knnTableFile);
-	    ObjectOutputStream oos = new ObjectOutputStream(fos);
-	    oos.writeObject(tripMap);
+	    OptTable.write(knnTableFile, tripMap, encoding);
 	} catch (Exception e) {
 	    e.printStackTrace();
 	}
@@ -2,16 +2,15 @@ package org.chargecar.algodev.policies;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 
 import org.chargecar.algodev.controllers.Controller;
 import org.chargecar.algodev.controllers.DPOptController;
+import org.chargecar.algodev.controllers.OptTable;
 import org.chargecar.algodev.knn.FullFeatureSet;
 import org.chargecar.algodev.knn.KnnPoint;
 import org.chargecar.algodev.predictors.Prediction;
@@ -26,7 +25,7 @@ import org.chargecar.prize.util.Trip;
 
 import org.chargecar.prize.util.TripFeatures;
 
-public class OptimalPolicy {
+public class OptimalPolicy implements DriverPrefetcher {
     
     protected Controller controller;
     private final int[] controlsSet = new int[]{-512,-1024,0,512,1024,1536,2048,2516,3072,3524,4096,5122,5500,6134,6600,7124,7600,8192,9122,10020,12000};
@@ -39,6 +38,12 @@ public class OptimalPolicy {
 
     private File optFileFolderPath;
     private int tripID;
+    private final DriverModelCache models = DriverModelCache.getShared();
+    private final DriverModelCache.Loader loader = new DriverModelCache.Loader(){
+	public DriverModel load(String driver) throws Exception {
+	    return loadModel(driver);
+	}
+    };
     
     public OptimalPolicy(String optFileFolderPath){
 	this.optFileFolderPath = new File(optFileFolderPath);
@@ -46,10 +51,22 @@ public class OptimalPolicy {
     }
     
     public void setOptPath(String optPath){
+	this.models.clear(getModelKind());
 	this.optFileFolderPath = new File(optPath);
 	this.optFileFolderPath.mkdirs();
 	this.currentDriver = null;
     }
+
+    /**
+     * The cache shared by all policies, see DriverModelCache.prefetch.
+     */
+    public DriverModelCache getModelCache(){
+	return models;
+    }
+
+    public void prefetch(String driver){
+	models.prefetch(getModelKind(), driver, loader);
+    }
     
     public void parseTrip(Trip t){
 	this.tripID = t.hashCode();	
@@ -67,16 +84,8 @@ public class OptimalPolicy {
 		
 		System.out.println("New driver: "+driver);
 		currentDriver = driver;
-		//load controller map		
-		File currentFile = new File(this.optFileFolderPath,driver+".opt");
-		currentDriver = driver;
-		this.controller = null;
-		FileInputStream fis = new FileInputStream(currentFile);
-		ObjectInputStream ois = new ObjectInputStream(fis);
-		Map<Integer, double[][]> optMap = (Map<Integer, double[][]>)ois.readObject();
-		System.out.println("Graph loaded. "+optMap.size()+" trips.");
-		controller = new DPOptController(controlsSet, optMap, null); 
-		System.out.println("Controller loaded.");		
+		DriverModel model = models.get(getModelKind(), driver, loader);
+		controller = new DPOptController(controlsSet, model.getOptMap(), null); 
 	    } catch (Exception e) {		
 		e.printStackTrace();
 	    }
@@ -84,6 +93,18 @@ public class OptimalPolicy {
 	
     }
     
+    //what loadModel builds from, models are cached per kind and driver
+    private String getModelKind(){
+	return shortName+" "+optFileFolderPath;
+    }
+
+    private DriverModel loadModel(String driver) throws IOException {
+	//load controller map		
+	File currentFile = new File(this.optFileFolderPath,driver+".opt");
+	Map<Integer, double[][]> optMap = OptTable.open(currentFile);
+	System.out.println("Graph loaded. "+optMap.size()+" trips.");
+	return new DriverModel(null, null, null, 0, optMap);
+    }
     
     public PowerFlows calculatePowerFlows(PointFeatures pf, int i) {
 	double idealFlow = getFlow(pf, i);	
@@ -167,6 +188,7 @@ public class OptimalPolicy {
     
     public void clearState() {
 	this.currentDriver = null;
+	this.models.clear(getModelKind());
 	this.controller = null;
     }
     
@@ -4,36 +4,71 @@ import java.util.List;
 
 import org.chargecar.algodev.knn.KdTree;
 import org.chargecar.algodev.knn.KdTreeFeatureSet;
+import org.chargecar.algodev.knn.KnnIndex;
 import org.chargecar.algodev.knn.KnnPoint;
+import org.chargecar.algodev.knn.KnnQuery;
 import org.chargecar.algodev.predictors.Prediction;
 import org.chargecar.algodev.predictors.Predictor;
 import org.chargecar.prize.util.PointFeatures;
 import org.chargecar.prize.util.Trip;
 
 public class KnnDistPredictor implements Predictor {
-    private final KdTree featTree;
+    private final KnnIndex featTree;
     private final int k;
     private List<Prediction> neighbors;
     private final boolean trained;
+    //only set for approximate searches
+    private KnnQuery query;
     
     public KnnDistPredictor(List<KnnPoint> points, KdTreeFeatureSet featureSet, int neighbors, boolean trainedOnTestData){//, int lookahead){
-	this.featTree = new KdTree(points, featureSet);
+	this(new KdTree(points, featureSet), neighbors, trainedOnTestData);
+    }
+
+    public KnnDistPredictor(KnnIndex tree, int neighbors, boolean trainedOnTestData){
+	this.featTree = tree;
 	this.k = neighbors;
 	this.neighbors = null;
 	this.trained = trainedOnTestData;
 	//this.lookahead = lookahead;
     }
+    /**
+     * Trades exactness for a bounded search, see KnnQuery.setApproximation.
+     * epsilon 0 and maxVisits Integer.MAX_VALUE go back to exact search.
+     */
+    public void setApproximation(double epsilon, int maxVisits){
+	KnnQuery approximate = new KnnQuery();
+	approximate.setApproximation(epsilon, maxVisits);
+	this.query = approximate.isExact() ? null : approximate;
+    }
+
+    /**
+     * Visits made by the last approximate search, 0 for exact searches.
+     */
+    public int getLastVisits(){
+	return query == null ? 0 : query.getVisits();
+    }
+
     @Override
     public List<Prediction> predictDuty(PointFeatures state) {
-	this.neighbors = featTree.getNeighbors(state, k, this.neighbors, this.trained);
+	if(query != null){
+	    featTree.getNeighbors(state, k, this.trained, query);
+	    this.neighbors = query.getPredictions();
+	}
+	else{
+	    this.neighbors = featTree.getNeighbors(state, k, this.neighbors, this.trained);
+	}
 	return this.neighbors;
     }
     
     public void addTrip(Trip t){
+	if(!(featTree instanceof KdTree)){
+	    throw new IllegalStateException("Cannot add trips to a static knn index");
+	}
+	KdTree tree = (KdTree)featTree;
 	for(int i = 0; i<t.getPoints().size();i++){
 		PointFeatures pf = t.getPoints().get(i);
 		KnnPoint kp = new KnnPoint(pf,i, t.hashCode());
-		featTree.addNode(kp);
+		tree.addNode(kp);
 	    }
 	
     }
@@ -1,8 +1,10 @@
 package org.chargecar.algodev.predictors.knn;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import org.chargecar.algodev.knn.KdForest;
 import org.chargecar.algodev.knn.KdTree;
@@ -26,23 +28,21 @@ import org.chargecar.prize.util.Trip;
     	}
         
         private void addPoints(List<KnnPoint> points){
-            Map<Integer, KdTree> treeMap = new HashMap<Integer, KdTree>();
+	    Map<Integer, List<KnnPoint>> tripMap = new HashMap<Integer, List<KnnPoint>>();
             
             for(KnnPoint kp : points){
         	int tripID = kp.getTripID();
-        	KdTree tree = treeMap.get(tripID);
-        	if(tree==null){
-        	    tree = new KdTree(null,featureSet);
-        	    tree.addNode(kp);
-        	    treeMap.put(tripID, tree);
-        	}
-        	else{
-        	    tree.addNode(kp);
+		List<KnnPoint> tripPoints = tripMap.get(tripID);
+		if(tripPoints==null){
+		    tripPoints = new ArrayList<KnnPoint>();
+		    tripMap.put(tripID, tripPoints);
         	}
+		tripPoints.add(kp);
             }
             
-            for(KdTree tree : treeMap.values()){
-        	forest.addExpert(tree);
+	    //one balanced build per trip instead of a point by point insert
+	    for(List<KnnPoint> tripPoints : tripMap.values()){
+		forest.addExpert(new KdTree(tripPoints, featureSet));
             }   
         }
         
@@ -50,6 +50,13 @@ import org.chargecar.prize.util.Trip;
             return forest.getNumExperts();
         }
         
+	/**
+	 * Searches the per trip experts in parallel on pool, see KdForest.setPool.
+	 */
+	public void setPool(ExecutorService pool){
+	    forest.setPool(pool);
+	}
+
         
         @Override
         public List<Prediction> predictDuty(PointFeatures state) {
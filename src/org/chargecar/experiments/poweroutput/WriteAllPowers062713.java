@@ -5,23 +5,24 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import org.chargecar.prize.util.GPXTripParser;
+import org.chargecar.prize.util.ParallelTripReader;
 import org.chargecar.prize.util.PointFeatures;
 import org.chargecar.prize.util.Trip;
-import org.chargecar.prize.util.TripFeatures;
+import org.chargecar.prize.util.TripCache;
 import org.chargecar.prize.util.Vehicle;
 import org.chargecar.prize.visualization.CSVWriter;
 
 
 /**
  * Experiment for MATLAB needs all possible power draws.
- * This reads and parses all files, then steps through them to
- * record all powers before writing to a CSV.
+ * This reads the files one trip at a time, through the trip
+ * cache, appending each trip's powers to a CSV as it is read.
  * @author Alex Styler
  * 
  */
 public class WriteAllPowers062713 {
     static Vehicle civic = new Vehicle(1200, 1.988, 0.31, 0.015);
+    static TripCache tripCache = TripCache.getDefault();
     static CSVWriter csvWriter = new CSVWriter("/home/astyler/Dropbox/experiments/poweroutput/062713.csv");
 
     /**
@@ -51,45 +52,19 @@ public class WriteAllPowers062713 {
     	    
 	System.out.println("Testing on "+gpxFiles.size()+" GPX files.");
 	
-	List<PointFeatures> points = parseTrips(gpxFiles);
-	csvWriter.writeTripPowers(points);
-    }    
-    
-    private static List<PointFeatures> parseTrips(List<File> tripFiles) throws IOException {
-
-	List<Trip> tripsToTest = new ArrayList<Trip>();
-	for (File tripFile : tripFiles) {
-	    tripsToTest.addAll(parseTrips(tripFile));
-	}	
-	
-	List<PointFeatures> tripPoints = new ArrayList<PointFeatures>();
-	
-	for (Trip t : tripsToTest) {
-	    if(t.getPoints().size() > 3600) continue;
-	    System.out.println("Trip "+t.getPoints().size()+"points.");		
-	    tripPoints.addAll(t.getPoints());
-	}	    
-	   
-	
-	return tripPoints;
-    }
-  
-    
-    private static List<Trip> parseTrips(File gpxFile) throws IOException {
-	List<Trip> trips = new ArrayList<Trip>();
-	int i=0;
-	GPXTripParser gpxparser = new GPXTripParser();
-	for (List<PointFeatures> tripPoints : gpxparser.read(gpxFile, civic)) {
-	    String driverName = gpxFile.getParentFile().getName();
-	    String fileName = driverName+gpxFile.getName().substring(0, gpxFile.getName().lastIndexOf('.'))+"_"+i;
-	    TripFeatures tf = new TripFeatures(driverName, fileName, civic, tripPoints
-		    .get(0));
-	    trips.add(new Trip(tf, tripPoints));
-	    gpxparser.clear();
-	    i++;
+	//start the file empty, then append trip by trip
+	csvWriter.writeTripPowers(new ArrayList<PointFeatures>(), false);
+	for (File tripFile : gpxFiles) {
+	    tripCache.readTrips(tripFile, civic, new ParallelTripReader.TripHandler() {
+		public void handle(Trip trip) {
+		    List<PointFeatures> tripPoints = trip.getPoints();
+		    if(tripPoints.size() > 3600) return;
+		    System.out.println("Trip "+tripPoints.size()+"points.");
+		    csvWriter.writeTripPowers(tripPoints, true);
+		}
+	    });
 	}
-	return trips;
-    }
+    }    
     
     static List<File> getGPXFiles(File gpxFolder) {
 	List<File> gpxFiles = new ArrayList<File>();
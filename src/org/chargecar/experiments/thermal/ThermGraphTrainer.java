@@ -19,10 +19,9 @@ import org.chargecar.algodev.knn.KnnTableTrainer;
 import org.chargecar.algodev.policies.MDPPolyTrainer;
 import org.chargecar.algodev.policies.MDPTrainer;
 import org.chargecar.prize.battery.SimpleCapacitor;
-import org.chargecar.prize.util.GPXTripParser;
+import org.chargecar.prize.util.ParallelTripReader;
 import org.chargecar.prize.util.PointFeatures;
 import org.chargecar.prize.util.Trip;
-import org.chargecar.prize.util.TripFeatures;
 import org.chargecar.prize.util.Vehicle;
 
 /**
@@ -61,7 +60,7 @@ public class ThermGraphTrainer {
 	    System.exit(1);
 	}
 	
-   	double[] temps = new double[111];
+	final double[] temps = new double[111];
    	for(int i = 0;i<111;i++){
    	    temps[i] = 30+i*0.1;
    	}
@@ -88,10 +87,10 @@ public class ThermGraphTrainer {
 	ObjectInputStream ois = new ObjectInputStream(fis);
 	double[][][] dynamics = (double[][][])ois.readObject(); 
 	ois.close();
-	ThermalBattery theBatt = new ThermalBattery(30, temps,powers,massFlows, dynamics);
+	final ThermalBattery theBatt = new ThermalBattery(30, temps,powers,massFlows, dynamics);
 	
 	String gpxFolder = args[0];	
-	String optFolder = args[1];
+	final String optFolder = args[1];
 	File folder = new File(gpxFolder);
 	List<File> gpxFilesT = getGPXFiles(folder);
 	List<File> gpxFiles = new ArrayList<File>(gpxFilesT.size());
@@ -102,18 +101,17 @@ public class ThermGraphTrainer {
 	System.out.println("Training on "+gpxFiles.size()+" GPX files.");
 	
 	
-	int count = 0;
-	for (File tripFile : gpxFiles) {
-	    List<Trip> tripsToTest = parseTrips(tripFile);
-	    for (Trip t : tripsToTest) {
+	final int[] count = new int[1];
+	new ParallelTripReader(civic).read(gpxFiles, new ParallelTripReader.TripHandler() {
+	    public void handle(Trip t) {
 		ThermalValueGraph tvg = new ThermalValueGraph(temps, massFlows, 0.99, theBatt,multi); 		
 		double[][] values = tvg.getValuesP(t.getPoints());		
-		writeTrip(t,values,optFolder,count);
-		count++;
+		writeTrip(t,values,optFolder,count[0]);
+		count[0]++;
 	    }
-	}
+	});
 	
-	System.out.println("Complete. Trips trained on: "+count);
+	System.out.println("Complete. Trips trained on: "+count[0]);
     }    
     
     public static void writeTrip(Trip t, double[][] vg, String optFolder, int num){  	
@@ -163,22 +161,6 @@ public class ThermGraphTrainer {
     }     
 
     
-    private static List<Trip> parseTrips(File gpxFile) throws IOException {
-	List<Trip> trips = new ArrayList<Trip>();
-	int i=0;
-	GPXTripParser gpxparser = new GPXTripParser();
-	for (List<PointFeatures> tripPoints : gpxparser.read(gpxFile, civic)) {
-	    String driverName = gpxFile.getParentFile().getName();
-	    String fileName = driverName+gpxFile.getName().substring(0, gpxFile.getName().lastIndexOf('.'))+"_"+i;
-	    TripFeatures tf = new TripFeatures(driverName, fileName, civic, tripPoints
-		    .get(0));
-	    trips.add(new Trip(tf, tripPoints));
-	    gpxparser.clear();
-	    i++;
-	}
-	return trips;
-    }
-    
     static List<File> getGPXFiles(File gpxFolder) {
 	List<File> gpxFiles = new ArrayList<File>();
 	File[] files = gpxFolder.listFiles();
@@ -6,6 +6,13 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.chargecar.prize.battery.BatteryModel;
 import org.chargecar.prize.battery.LeadAcidBattery;
@@ -15,13 +22,12 @@ import org.chargecar.prize.battery.SimpleCapacitor;
 import org.chargecar.prize.policies.NoCapPolicy;
 import org.chargecar.prize.policies.Policy;
 import org.chargecar.prize.util.DriverResults;
-import org.chargecar.prize.util.GPXTripParser;
+import org.chargecar.prize.util.ParallelTripReader;
 import org.chargecar.prize.util.PointFeatures;
 import org.chargecar.prize.util.PowerFlowException;
 import org.chargecar.prize.util.PowerFlows;
 import org.chargecar.prize.util.SimulationResults;
 import org.chargecar.prize.util.Trip;
-import org.chargecar.prize.util.TripFeatures;
 import org.chargecar.prize.util.Vehicle;
 import org.chargecar.prize.visualization.CSVWriter;
 import org.chargecar.prize.visualization.ConsoleWriter;
@@ -47,6 +53,10 @@ public class Simulator {
     static double systemVoltage = 96;
     static double batteryWhr = 50000;
     static double capWhr = 50;
+    //run each policy on its own thread, side by side
+    static boolean parallelPolicies = true;
+    //trips handed to the policies and not yet finished by all of them
+    static int tripsInFlight = 16;
     /**
      * @param args
      *            A pathname to a GPX file or folder containing GPX files (will
@@ -98,33 +108,105 @@ public class Simulator {
 	visualizer.visualizeSummary(results);
     }
     
-    private static List<SimulationResults> simulateTrips(List<Policy> policies,
+    private static List<SimulationResults> simulateTrips(final List<Policy> policies,
 	    List<File> tripFiles) throws IOException {
-	List<SimulationResults> results = new ArrayList<SimulationResults>();
+	final List<SimulationResults> results = new ArrayList<SimulationResults>();
 	for (Policy p : policies) {
 	    results.add(new SimulationResults(p.getName()));
 	}
-	int count = 0;
-	for (File tripFile : tripFiles) {
-	    List<Trip> tripsToTest = parseTrips(tripFile);
-	    //if(tripsToTest.size() >= 2) tripsToTest = tripsToTest.subList(0, 1);
-	    for (Trip t : tripsToTest) {
-		count++;
-		System.out.println("Trip "+count+": "+t.getPoints().size()+"points.");
-		for (int i = 0; i < policies.size(); i++) {
-		    try {
-			simulateTrip(policies.get(i), t, results.get(i));
-						
-		    } catch (PowerFlowException e) {
-			e.printStackTrace();
+	final int[] count = new int[1];
+	//each policy simulates the trips in order on its own lane, one
+	//thread, so the policies run side by side while every policy, and
+	//its results, sees the trips just as a sequential run would
+	final ExecutorService[] lanes = parallelPolicies && policies.size() > 1 ? startLanes(policies) : null;
+	final Semaphore inFlight = new Semaphore(tripsInFlight);
+	final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+	try {
+	    //files are parsed in parallel, each trip is simulated, in file
+	    //order, as soon as it is parsed
+	    new ParallelTripReader(civic).read(tripFiles, new ParallelTripReader.TripHandler() {
+		public void handle(final Trip t) {
+		    count[0]++;
+		    System.out.println("Trip "+count[0]+": "+t.getPoints().size()+"points.");
+		    if (lanes == null) {
+			for (int i = 0; i < policies.size(); i++) {
+			    runTrip(policies.get(i), t, results.get(i));
+			}
+			return;
+		    }
+		    inFlight.acquireUninterruptibly();
+		    //stop reading once a policy has failed
+		    rethrow(failure.get());
+		    final AtomicInteger remaining = new AtomicInteger(policies.size());
+		    for (int i = 0; i < policies.size(); i++) {
+			final int p = i;
+			lanes[p].execute(new Runnable() {
+			    public void run() {
+				try {
+				    if (failure.get() == null) runTrip(policies.get(p), t, results.get(p));
+				} catch (Throwable e) {
+				    failure.compareAndSet(null, e);
+				} finally {
+				    if (remaining.decrementAndGet() == 0) inFlight.release();
+				}
+			    }
+			});
 		    }
 		}
-	    }
+	    });
+	} finally {
+	    if (lanes != null) awaitLanes(lanes);
 	}
+	rethrow(failure.get());
 	System.out.println();
-	System.out.println("Trips tested: "+count);
+	System.out.println("Trips tested: "+count[0]);
 	return results;
     }
+
+    private static ExecutorService[] startLanes(List<Policy> policies) {
+	ExecutorService[] lanes = new ExecutorService[policies.size()];
+	for (int i = 0; i < lanes.length; i++) {
+	    final String name = "policy-"+policies.get(i).getShortName();
+	    lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread thread = new Thread(r, name);
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+	}
+	return lanes;
+    }
+
+    private static void awaitLanes(ExecutorService[] lanes) {
+	for (ExecutorService lane : lanes) {
+	    lane.shutdown();
+	}
+	try {
+	    for (ExecutorService lane : lanes) {
+		while (!lane.awaitTermination(1, TimeUnit.MINUTES));
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    private static void rethrow(Throwable e) {
+	if (e == null) return;
+	if (e instanceof RuntimeException) throw (RuntimeException)e;
+	if (e instanceof Error) throw (Error)e;
+	throw new RuntimeException(e);
+    }
+
+    private static void runTrip(Policy policy, Trip trip,
+	    SimulationResults results) {
+	try {
+	    simulateTrip(policy, trip, results);
+
+	} catch (PowerFlowException e) {
+	    e.printStackTrace();
+	}
+    }
     
     private static void simulateTrip(Policy policy, Trip trip,
 	    SimulationResults results) throws PowerFlowException {
@@ -149,22 +231,6 @@ public class Simulator {
 	policy.endTrip(trip);
     }
     
-    private static List<Trip> parseTrips(File gpxFile) throws IOException {
-	List<Trip> trips = new ArrayList<Trip>();
-	int i=0;
-	GPXTripParser gpxparser = new GPXTripParser();
-	for (List<PointFeatures> tripPoints : gpxparser.read(gpxFile, civic)) {
-	    String driverName = gpxFile.getParentFile().getName();
-	    String fileName = driverName+gpxFile.getName().substring(0, gpxFile.getName().lastIndexOf('.'))+"_"+i;
-	    TripFeatures tf = new TripFeatures(driverName, fileName, civic, tripPoints
-		    .get(0));
-	    trips.add(new Trip(tf, tripPoints));
-	    gpxparser.clear();
-	    i++;
-	}
-	return trips;
-    }
-    
     static List<File> getGPXFiles(File gpxFolder) {
 	List<File> gpxFiles = new ArrayList<File>();
 	File[] files = gpxFolder.listFiles();
@@ -0,0 +1,182 @@
+package org.chargecar.prize.util;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.TimeZone;
+
+/**
+ * A trip held as one primitive array per point feature instead of a list of
+ * PointFeatures, each with its own Calendar. Times are kept as epoch millis
+ * in the time zone of the trip's first timed point.
+ *
+ * The arrays returned by the getters are the trip's own and must not be
+ * changed. getPoints() is a read only view that builds a PointFeatures on
+ * each get(), for code that still wants points.
+ */
+public class ColumnarTrip {
+    //time of a point that had none
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    private final TripFeatures features;
+    private final int size;
+    private final double[] latitude;
+    private final double[] longitude;
+    private final double[] elevation;
+    private final double[] bearing;
+    private final double[] planarDist;
+    private final double[] acceleration;
+    private final double[] speed;
+    private final double[] powerDemand;
+    private final double[] totalPowerUsed;
+    private final int[] periodMS;
+    private final long[] time;
+    private final TimeZone timeZone;
+    private final List<PointFeatures> points;
+
+    public ColumnarTrip(TripFeatures features, List<PointFeatures> points) {
+	this.features = features;
+	this.size = points.size();
+	latitude = new double[size];
+	longitude = new double[size];
+	elevation = new double[size];
+	bearing = new double[size];
+	planarDist = new double[size];
+	acceleration = new double[size];
+	speed = new double[size];
+	powerDemand = new double[size];
+	totalPowerUsed = new double[size];
+	periodMS = new int[size];
+	time = new long[size];
+	TimeZone zone = null;
+	int i = 0;
+	for (PointFeatures pf : points) {
+	    latitude[i] = pf.getLatitude();
+	    longitude[i] = pf.getLongitude();
+	    elevation[i] = pf.getElevation();
+	    bearing[i] = pf.getBearing();
+	    planarDist[i] = pf.getPlanarDist();
+	    acceleration[i] = pf.getAcceleration();
+	    speed[i] = pf.getSpeed();
+	    powerDemand[i] = pf.getPowerDemand();
+	    totalPowerUsed[i] = pf.getTotalPowerUsed();
+	    periodMS[i] = pf.getPeriodMS();
+	    Calendar t = pf.getTime();
+	    time[i] = t == null ? NO_TIME : t.getTimeInMillis();
+	    if (zone == null && t != null) zone = t.getTimeZone();
+	    i++;
+	}
+	this.timeZone = zone == null ? TimeZone.getDefault() : zone;
+	this.points = new PointView();
+    }
+
+    public ColumnarTrip(Trip trip) {
+	this(trip.getFeatures(), trip.getPoints());
+    }
+
+    /**
+     * A Trip with a PointFeatures, and Calendar, for every point.
+     */
+    public Trip toTrip() {
+	return new Trip(features, new ArrayList<PointFeatures>(points));
+    }
+
+    public TripFeatures getFeatures() {
+	return features;
+    }
+
+    public int size() {
+	return size;
+    }
+
+    public PointFeatures getPoint(int i) {
+	Calendar t = null;
+	if (time[i] != NO_TIME) {
+	    t = Calendar.getInstance(timeZone);
+	    t.setTimeInMillis(time[i]);
+	}
+	return new PointFeatures(latitude[i], longitude[i], elevation[i],
+		bearing[i], planarDist[i], acceleration[i], speed[i],
+		powerDemand[i], totalPowerUsed[i], periodMS[i], t);
+    }
+
+    /**
+     * The points as PointFeatures, built when they are asked for.
+     */
+    public List<PointFeatures> getPoints() {
+	return points;
+    }
+
+    public double[] getLatitudes() {
+	return latitude;
+    }
+
+    public double[] getLongitudes() {
+	return longitude;
+    }
+
+    public double[] getElevations() {
+	return elevation;
+    }
+
+    public double[] getBearings() {
+	return bearing;
+    }
+
+    public double[] getPlanarDists() {
+	return planarDist;
+    }
+
+    public double[] getAccelerations() {
+	return acceleration;
+    }
+
+    public double[] getSpeeds() {
+	return speed;
+    }
+
+    public double[] getPowerDemands() {
+	return powerDemand;
+    }
+
+    public double[] getTotalPowersUsed() {
+	return totalPowerUsed;
+    }
+
+    public int[] getPeriodsMS() {
+	return periodMS;
+    }
+
+    /**
+     * Epoch millis of each point, NO_TIME for points without a time.
+     */
+    public long[] getTimes() {
+	return time;
+    }
+
+    public TimeZone getTimeZone() {
+	return timeZone;
+    }
+
+    /**
+     * Approximate heap bytes of the columns.
+     */
+    public long getMemoryBytes() {
+	return 11 * 16 + (long) size * (9 * 8 + 4 + 8);
+    }
+
+    private class PointView extends AbstractList<PointFeatures> implements RandomAccess {
+	@Override
+	public PointFeatures get(int i) {
+	    if (i < 0 || i >= size) throw new IndexOutOfBoundsException("Point " + i + " of " + size);
+	    return getPoint(i);
+	}
+
+	@Override
+	public int size() {
+	    return size;
+	}
+    }
+}
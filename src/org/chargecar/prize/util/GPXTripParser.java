@@ -15,14 +15,37 @@ import org.xml.sax.*;
  * A class to read a GPX file into a java class containing the lat, lon,
  * elevation and time information.
  * 
+ * Trips are built while the file is parsed: each is handed on as soon as
+ * the 360 second gap that ends it is read, so only the trip being read is
+ * held in memory. read(File, Vehicle, TripListener) passes them to a
+ * listener; read(File, Vehicle) collects them into a list.
+ * 
  * @author Alex Styler
  */
 public class GPXTripParser extends org.xml.sax.helpers.DefaultHandler {
+    /**
+     * Receives each trip that passes the filters, in file order, during
+     * parsing. Must not call clear() on the parser.
+     */
+    public interface TripListener {
+	public void tripParsed(List<PointFeatures> tripPoints);
+    }
+
+    private static final double accLimit = 4.9;
+    private static final double minTripDist = 500;
+    //point fields read but not yet matched into a whole point
     private List<Calendar> rawTimes;
     private List<Double> rawLats;
     private List<Double> rawLons;
     private List<Double> rawEles;
+    //the trip being read
+    private List<Calendar> times;
+    private List<Double> lats;
+    private List<Double> lons;
+    private List<Double> eles;
+    private Calendar lastTime;
     private Vehicle vehicle;
+    private TripListener listener;
     private List<List<PointFeatures>> trips;
     private Stack<String> elementNames;
     private StringBuilder contentBuffer;
@@ -45,14 +68,35 @@ public class GPXTripParser extends org.xml.sax.helpers.DefaultHandler {
 	rawLats = new ArrayList<Double>();
 	rawLons = new ArrayList<Double>();
 	rawEles = new ArrayList<Double>();
+	times = new ArrayList<Calendar>();
+	lats = new ArrayList<Double>();
+	lons = new ArrayList<Double>();
+	eles = new ArrayList<Double>();
+	lastTime = null;
     }
     
     public List<List<PointFeatures>> read(File gpxFile, Vehicle vehicle)
+    throws IOException {
+	final List<List<PointFeatures>> parsed = new ArrayList<List<PointFeatures>>();
+	read(gpxFile, vehicle, new TripListener() {
+	    public void tripParsed(List<PointFeatures> tripPoints) {
+		parsed.add(tripPoints);
+	    }
+	});
+	trips = parsed;
+	return trips;
+    }
+
+    /**
+     * Parses the file, passing each trip to the listener as soon as it is
+     * complete. Trips are not held back until the whole file has parsed,
+     * so an IOException can follow trips already passed on.
+     */
+    public void read(File gpxFile, Vehicle vehicle, TripListener listener)
     throws IOException {
 	clear();
-	double accLimit = 4.9;
-	double minTripDist = 500;
 	this.vehicle = vehicle;
+	this.listener = listener;
 	FileInputStream in = new FileInputStream(gpxFile);
 	InputSource source = new InputSource(in);
 	XMLReader parser;
@@ -65,94 +109,78 @@ public class GPXTripParser extends org.xml.sax.helpers.DefaultHandler {
 	    System.err.println("Error reading file: "+gpxFile.getCanonicalPath());
 	    e.printStackTrace();
 	    throw new IOException();
+	} finally {
+	    in.close();
+	    this.listener = null;
 	}
-	in.close();
-	
-	for (int i = 0; i < trips.size();) {
-	    if(trips.get(i) == null || trips.get(i).size() < 100){
-		trips.remove(i);
-		continue;
-	    }
-	    
-	    double sumPlanarDist = 0.0;
-	    double maxAccel = 0.0;
-	    double acc;
-	    for (PointFeatures p : trips.get(i)) {
-		sumPlanarDist += p.getPlanarDist();
-		acc = Math.abs(p.getAcceleration());
-		if(acc > maxAccel){
-		    maxAccel = acc;
-		}
-	    }
-	    if (sumPlanarDist < minTripDist || maxAccel > accLimit){
-		trips.remove(i);
-	    } else {
-		i++;
-	    }
-	}
-	
-	return trips;
     }
     
-    private void processTrips() {
-	if (rawTimes.isEmpty()) {
-	    return;
+    /**
+     * Moves the points whose time, position and elevation have all been
+     * read into the current trip.
+     */
+    private void addPoints() {
+	while (!rawTimes.isEmpty() && !rawLats.isEmpty() && !rawLons.isEmpty()
+		&& !rawEles.isEmpty()) {
+	    addPoint(rawTimes.remove(0), rawLats.remove(0), rawLons.remove(0),
+		    rawEles.remove(0));
 	}
-	// clean of duplicate readings
-	removeDuplicates();
-	
-	List<Calendar> times = new ArrayList<Calendar>();
-	List<Double> lats = new ArrayList<Double>();
-	List<Double> lons = new ArrayList<Double>();
-	List<Double> eles = new ArrayList<Double>();
-	
-	times.add(rawTimes.get(0));
-	lats.add(rawLats.get(0));
-	lons.add(rawLons.get(0));
-	eles.add(rawEles.get(0));
-	
-	for (int i = 1; i < rawTimes.size(); i++) {
-	    long msDiff = rawTimes.get(i).getTimeInMillis()
-	    - rawTimes.get(i - 1).getTimeInMillis();
+    }
+
+    private void addPoint(Calendar time, Double lat, Double lon, Double ele) {
+	if (lastTime != null) {
+	    long msDiff = time.getTimeInMillis() - lastTime.getTimeInMillis();
+	    // clean of duplicate readings
+	    if (msDiff < 500) {
+		return;
+	    }
 	    if (msDiff > 360000) {
 		// if enough time has passed between points (360 seconds)
 		// consider them disjoint trips
-		if(times.size() > 1)
-		    trips.add(TripBuilder2.calculateTrip(times, lats, lons, eles, vehicle));
+		if (times.size() > 1)
+		    emitTrip(TripBuilder2.calculateTrip(times, lats, lons, eles, vehicle));
 	    
 		times.clear();
 		lats.clear();
 		lons.clear();
 		eles.clear();
 	    }
-	    
-	    times.add(rawTimes.get(i));
-	    lats.add(rawLats.get(i));
-	    lons.add(rawLons.get(i));
-	    eles.add(rawEles.get(i));
 	}
+	lastTime = time;
+	times.add(time);
+	lats.add(lat);
+	lons.add(lon);
+	eles.add(ele);
+    }
 	
+    private void endTrips() {
+	addPoints();
 	if (times.size() > 60) {
 	    // get last trip
-	    trips.add(TripBuilder2.calculateTrip(times, lats, lons, eles, vehicle));
+	    emitTrip(TripBuilder2.calculateTrip(times, lats, lons, eles, vehicle));
 	}
-	
 	clearRawData();
     }
     
-    private void removeDuplicates() {
-	for (int i = 1; i < rawTimes.size();) {
-	    if (rawTimes.get(i).getTimeInMillis()
-		    - rawTimes.get(i - 1).getTimeInMillis() < 500) {
-		rawTimes.remove(i);
-		rawLats.remove(i);
-		rawLons.remove(i);
-		rawEles.remove(i);
-	    } else {
-		i++;
+    private void emitTrip(List<PointFeatures> trip) {
+	if (trip == null || trip.size() < 100) {
+	    return;
+	}
+
+	double sumPlanarDist = 0.0;
+	double maxAccel = 0.0;
+	double acc;
+	for (PointFeatures p : trip) {
+	    sumPlanarDist += p.getPlanarDist();
+	    acc = Math.abs(p.getAcceleration());
+	    if (acc > maxAccel) {
+		maxAccel = acc;
 	    }
-	    
 	}
+	if (sumPlanarDist < minTripDist || maxAccel > accLimit) {
+	    return;
+	}
+	listener.tripParsed(trip);
     }
     
     /*
@@ -197,10 +225,12 @@ public class GPXTripParser extends org.xml.sax.helpers.DefaultHandler {
 	if (points > 0 && currentElement != null) {
 	    if (currentElement.compareToIgnoreCase("ele") == 0) {
 		rawEles.add(Double.parseDouble(contentBuffer.toString()));
+		addPoints();
 	    } else if (currentElement.compareToIgnoreCase("time") == 0) {
 		rawTimes.add(gmtStringToCalendar(contentBuffer.toString()));
+		addPoints();
 	    } else if (currentElement.compareToIgnoreCase("gpx") == 0) {
-		processTrips();
+		endTrips();
 	    }
 	}
     }
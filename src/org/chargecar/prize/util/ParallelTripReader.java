@@ -0,0 +1,132 @@
+package org.chargecar.prize.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads GPX files on a pool of worker threads, each file with its own
+ * GPXTripParser so the power model runs in the workers too, and hands the
+ * trips to a TripHandler on the calling thread in the order reading the
+ * files one after another would: file by file, and in file order within
+ * each. Only a few files per worker are read ahead of the one being
+ * handled, so memory does not grow with the number of files. Trips come
+ * from the TripCache when they were cached, by default the one named by
+ * TripCache.getDefault().
+ *
+ * Trips are named as the simulators always have: the driver is the file's
+ * folder and the trip is driver+file name+"_"+index in the file.
+ */
+public class ParallelTripReader {
+    public interface TripHandler {
+	public void handle(Trip trip);
+    }
+
+    //files read ahead per worker
+    private static final int READ_AHEAD = 4;
+
+    private final Vehicle vehicle;
+    private final int threads;
+    private final TripCache cache;
+
+    /**
+     * One worker per processor.
+     */
+    public ParallelTripReader(Vehicle vehicle){
+	this(vehicle, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelTripReader(Vehicle vehicle, int threads){
+	this(vehicle, threads, TripCache.getDefault());
+    }
+
+    public ParallelTripReader(Vehicle vehicle, int threads, TripCache cache){
+	this.vehicle = vehicle;
+	this.threads = Math.max(1, threads);
+	this.cache = cache;
+    }
+
+    /**
+     * Reads the files' trips, passing each to the handler, and returns how
+     * many there were.
+     */
+    public int read(List<File> gpxFiles, TripHandler handler) throws IOException {
+	ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+	    public Thread newThread(Runnable r){
+		Thread thread = new Thread(r, "gpx-reader");
+		thread.setDaemon(true);
+		return thread;
+	    }
+	});
+	int count = 0;
+	try {
+	    LinkedList<Future<List<Trip>>> pending = new LinkedList<Future<List<Trip>>>();
+	    int next = 0;
+	    while(next < gpxFiles.size() || !pending.isEmpty()){
+		while(next < gpxFiles.size() && pending.size() < threads*READ_AHEAD){
+		    final File gpxFile = gpxFiles.get(next++);
+		    pending.add(pool.submit(new Callable<List<Trip>>(){
+			public List<Trip> call() throws IOException {
+			    return cache.getTrips(gpxFile, vehicle);
+			}
+		    }));
+		}
+		for(Trip trip : await(pending.removeFirst())){
+		    handler.handle(trip);
+		    count++;
+		}
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+	return count;
+    }
+
+    /**
+     * The file's trips, parsed on this thread.
+     */
+    public static List<Trip> parseTrips(File gpxFile, Vehicle vehicle) throws IOException {
+	List<Trip> trips = new ArrayList<Trip>();
+	int i=0;
+	GPXTripParser gpxparser = new GPXTripParser();
+	for (List<PointFeatures> tripPoints : gpxparser.read(gpxFile, vehicle)) {
+	    trips.add(newTrip(gpxFile, i, vehicle, tripPoints));
+	    i++;
+	}
+	return trips;
+    }
+
+    /**
+     * Trip i of the file, with the usual driver and file names.
+     */
+    static Trip newTrip(File gpxFile, int i, Vehicle vehicle, List<PointFeatures> tripPoints) {
+	String driverName = gpxFile.getParentFile().getName();
+	String fileName = driverName+gpxFile.getName().substring(0, gpxFile.getName().lastIndexOf('.'))+"_"+i;
+	TripFeatures tf = new TripFeatures(driverName, fileName, vehicle, tripPoints
+		.get(0));
+	return new Trip(tf, tripPoints);
+    }
+
+    private static List<Trip> await(Future<List<Trip>> future) throws IOException {
+	try {
+	    return future.get();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted reading GPX files", e);
+	} catch (ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if(cause instanceof IOException) throw (IOException)cause;
+	    if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+	    if(cause instanceof Error) throw (Error)cause;
+	    throw new IOException(cause);
+	}
+    }
+}
@@ -1,6 +1,7 @@
 package org.chargecar.prize.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
 
@@ -17,213 +18,396 @@ import java.util.List;
  * 
  */
 public class TripBuilder2 {
+    private static final double accLimit = 4.9;
+    private static final int maxPeriodMS = 1000;
+
+    /**
+     * Builds the trip's points, first removing tunnels, filling gaps of two
+     * seconds or more and removing the points at acceleration spikes, as
+     * long as under 5% of the points need removing (null otherwise).
+     * 
+     * The points are held in primitive arrays. A spike's point is removed
+     * and only its neighbourhood is checked again for tunnels, gaps and
+     * spikes, as the rest of the trip is unchanged by it, so a noisy trip
+     * costs one pass rather than one pass per spike.
+     */
     public static List<PointFeatures> calculateTrip(List<Calendar> times,
 	    List<Double> lats, List<Double> lons, List<Double> eles,
 	    Vehicle vehicle) {
-	 List<PointFeatures> tripPoints;
-	boolean broken;
+	TripPoints trip = new TripPoints(times.size());
+	for (int i = 0; i < times.size(); i++) {
+	    trip.add(times.get(i), lats.get(i), lons.get(i), eles.get(i));
+	}
+	trip.removeTunnels();
+	trip = trip.interpolate();
+	if (trip.size < 2) {
+	    return null;
+	}
+
 	int fixes = 0;
-	do{	    
-	    broken = false;
-	    removeTunnels(times, lats, lons, eles);
-	    interpolatePoints(times, lats, lons, eles);
-	    tripPoints = new ArrayList<PointFeatures>(times.size());
-	    runPowerModel(tripPoints, times, lats, lons, eles, vehicle);
-	    for(int i=0; i < tripPoints.size();i++){
-			if(Math.abs(tripPoints.get(i).getAcceleration()) > 4.9){
-			    broken = true;
-			    fixes++;
-			    lats.remove(i);
-			    lons.remove(i);
-			    eles.remove(i);
-			    times.remove(i);
-//			    tripPoints.remove(i);
-//			    i=i+1;
-			    break;
-			}		
-	    }
-	    if(((double)fixes / (double)tripPoints.size()) > 0.05)
-	    	return null;	
-	}while(broken);
-	
-	if((double)fixes / (tripPoints.size()+fixes) > 0.02){
-	    System.out.println(fixes+"/"+(tripPoints.size()+fixes));
-	    //return null;
+	int spike = trip.findSpike(0);
+	while (spike >= 0) {
+	    fixes++;
+	    // as before, the ratio is to the trip the spike was found in,
+	    // after tunnel removal and interpolation
+	    int spikeTripSize = trip.size;
+	    int changed = trip.removeSpike(spike);
+	    if (((double) fixes / (double) spikeTripSize) > 0.05)
+		return null;
+	    spike = trip.findSpike(changed);
 	}
-	
-	return tripPoints;	
+	if (((double) fixes / (double) trip.size) > 0.05)
+	    return null;
+
+	if ((double) fixes / (trip.size + fixes) > 0.02) {
+	    System.out.println(fixes + "/" + (trip.size + fixes));
+	    // return null;
+	}
+
+	return trip.runPowerModel(vehicle);
     }
     
-    private static void interpolatePoints(List<Calendar> times,
-	    List<Double> lats, List<Double> lons, List<Double> eles) {
-	// make sure there is a point no gaps of two seconds,
-	// as this is all gps based without car scantool
-	final int maxPeriodMS = 1000;
+    /**
+     * A trip's raw points in growable parallel arrays.
+     */
+    private static class TripPoints {
+	Calendar[] times;
+	long[] ms;
+	double[] lats;
+	double[] lons;
+	double[] eles;
+	int size;
 	
-	for (int i = 1; i < times.size(); i++) {
-	    long newTime = times.get(i).getTimeInMillis();
-	    long oldTime = times.get(i - 1).getTimeInMillis();
-	    if (newTime - oldTime >= 2*maxPeriodMS) {
-		double latpms = (lats.get(i) - lats.get(i - 1))
-		/ (newTime - oldTime);
-		double lonpms = (lons.get(i) - lons.get(i - 1))
-		/ (newTime - oldTime);
-		double elepms = (eles.get(i) - eles.get(i - 1))
-		/ (newTime - oldTime);
-		Calendar interpTime = Calendar.getInstance();
-		interpTime.setTimeInMillis(oldTime + maxPeriodMS);
-		times.add(i, interpTime);
+	TripPoints(int capacity) {
+	    capacity = Math.max(capacity, 2);
+	    times = new Calendar[capacity];
+	    ms = new long[capacity];
+	    lats = new double[capacity];
+	    lons = new double[capacity];
+	    eles = new double[capacity];
+	}
 		
-		lats.add(i, lats.get(i - 1) + maxPeriodMS * latpms);
-		lons.add(i, lons.get(i - 1) + maxPeriodMS * lonpms);
-		eles.add(i, eles.get(i - 1) + maxPeriodMS * elepms);
+	void add(Calendar time, double lat, double lon, double ele) {
+	    if (size == ms.length) {
+		grow(size + 1);
 	    }
+	    set(size, time, lat, lon, ele);
+	    size++;
 	}
-    }
-    
-    private static void runPowerModel(List<PointFeatures> tripPoints,
-	    List<Calendar> times, List<Double> lats, List<Double> lons,
-	    List<Double> eles, Vehicle vehicle) {
-	List<Double> bearings = new ArrayList<Double>();
-	List<Double> planarDistances = new ArrayList<Double>();
-	List<Double> adjustedDistances = new ArrayList<Double>();
-	List<Double> speeds = new ArrayList<Double>();
-	List<Double> accelerations = new ArrayList<Double>();
-	List<Double> powerDemands = new ArrayList<Double>();
 	
-	speeds.add(0.0);
-	planarDistances.add(0.0);
-	adjustedDistances.add(0.0);
-	accelerations.add(0.0);
+	private void set(int i, Calendar time, double lat, double lon, double ele) {
+	    times[i] = time;
+	    ms[i] = time.getTimeInMillis();
+	    lats[i] = lat;
+	    lons[i] = lon;
+	    eles[i] = ele;
+	}
 	
-	for (int i = 1; i < times.size(); i++) {
-	    long msDiff = (times.get(i).getTimeInMillis() - times.get(i - 1)
-		    .getTimeInMillis());
-	    if (msDiff == 0) {
-		break;
+	private void grow(int minCapacity) {
+	    int capacity = Math.max(minCapacity, ms.length + (ms.length >> 1));
+	    times = Arrays.copyOf(times, capacity);
+	    ms = Arrays.copyOf(ms, capacity);
+	    lats = Arrays.copyOf(lats, capacity);
+	    lons = Arrays.copyOf(lons, capacity);
+	    eles = Arrays.copyOf(eles, capacity);
+	}
+
+	// removes points from (inclusive) to to (exclusive)
+	private void remove(int from, int to) {
+	    int tail = size - to;
+	    System.arraycopy(times, to, times, from, tail);
+	    System.arraycopy(ms, to, ms, from, tail);
+	    System.arraycopy(lats, to, lats, from, tail);
+	    System.arraycopy(lons, to, lons, from, tail);
+	    System.arraycopy(eles, to, eles, from, tail);
+	    size -= to - from;
+	    Arrays.fill(times, size, size + to - from, null);
+	}
+
+	private void insert(int i, Calendar time, double lat, double lon, double ele) {
+	    if (size == ms.length) {
+		grow(size + 1);
 	    }
-	    double eleDiff = eles.get(i) - eles.get(i - 1);
-	    double tempDist = Haversine(lats.get(i - 1), lons.get(i - 1), lats
-		    .get(i), lons.get(i));
-	    bearings.add(getBearing(lats.get(i - 1), lons.get(i - 1), lats
-		    .get(i), lons.get(i)));
-	    planarDistances.add(tempDist);
-	    tempDist = Math.sqrt((tempDist * tempDist) + (eleDiff * eleDiff));
-	    adjustedDistances.add(tempDist);
-	    double tempSpeed = 1000.0 * tempDist / msDiff;
+	    int tail = size - i;
+	    System.arraycopy(times, i, times, i + 1, tail);
+	    System.arraycopy(ms, i, ms, i + 1, tail);
+	    System.arraycopy(lats, i, lats, i + 1, tail);
+	    System.arraycopy(lons, i, lons, i + 1, tail);
+	    System.arraycopy(eles, i, eles, i + 1, tail);
+	    set(i, time, lat, lon, ele);
+	    size++;
+	}
 	    
-	    if (tempDist < 1E-5) {
-		speeds.add(0.0);
-	    } else {
-		speeds.add(tempSpeed);
+	private boolean samePosition(int i, int j) {
+	    return Double.compare(lats[i], lats[j]) == 0
+		    && Double.compare(lons[i], lons[j]) == 0;
+	}
+
+	/**
+	 * Removes tunnel points, tunnels will be fixed later by interpolation.
+	 * Consecutive readings at one position followed by a move of over 50
+	 * metres are taken as a tunnel and all but the first reading dropped.
+	 */
+	void removeTunnels() {
+	    if (size == 0) {
+		return;
+	    }
+	    // kept points are compacted to the front
+	    int kept = 1;
+	    int consecutiveCounter = 0;
+	    for (int i = 1; i < size; i++) {
+		if (samePosition(i, kept - 1)) {
+		    consecutiveCounter++;
+		} else if (consecutiveCounter > 0) {
+		    if (Haversine(lats[kept - 1], lons[kept - 1], lats[i],
+			    lons[i]) > 50) {
+			// if traveled at least 50 metres, assume tunnel
+			int from = kept - consecutiveCounter;
+			if (from == 1) from = 0;
+			kept = from;
+		    }
+		    consecutiveCounter = 0;
+		}
+		set(kept, times[i], lats[i], lons[i], eles[i]);
+		kept++;
 	    }
-	    //speeds.set(0, speeds.get(1));
-	    accelerations.add(1000.0 * (speeds.get(i) - speeds.get(i - 1))
-		    / msDiff);
+	    Arrays.fill(times, kept, size, null);
+	    size = kept;
 	}
-	bearings.add(bearings.get(bearings.size()-1));
-	accelerations.set(1, 0.0);
-	speeds.set(0, speeds.get(1));	
 	
-	final double carMassKg = vehicle.getMass();
-	final double aGravity = 9.81;
-	final double offset = 240; //350 watts drawn
-	final double ineff = 1;
-	final double regenEff = 0.45;
+	/**
+	 * A copy with points added so there are no gaps of two seconds, as
+	 * this is all gps based without car scantool.
+	 */
+	TripPoints interpolate() {
+	    TripPoints filled = new TripPoints(size);
+	    for (int i = 0; i < size; i++) {
+		if (i > 0) {
+		    int last = filled.size - 1;
+		    while (ms[i] - filled.ms[last] >= 2 * maxPeriodMS) {
+			filled.add(interpolatedTime(filled.ms[last]),
+				interpolate(filled.lats[last], lats[i], filled.ms[last], ms[i]),
+				interpolate(filled.lons[last], lons[i], filled.ms[last], ms[i]),
+				interpolate(filled.eles[last], eles[i], filled.ms[last], ms[i]));
+			last++;
+		    }
+		}
+		filled.add(times[i], lats[i], lons[i], eles[i]);
+	    }
+	    return filled;
+	}
 	
-	final double outsideTemp = ((84 + 459.67) * 5 / 9);// 60F to kelvin
+	// fills gaps between points from-1 and to, in place
+	private void interpolate(int from, int to) {
+	    for (int i = Math.max(from, 1); i <= to && i < size; i++) {
+		long newTime = ms[i];
+		long oldTime = ms[i - 1];
+		if (newTime - oldTime >= 2 * maxPeriodMS) {
+		    insert(i, interpolatedTime(oldTime),
+			    interpolate(lats[i - 1], lats[i], oldTime, newTime),
+			    interpolate(lons[i - 1], lons[i], oldTime, newTime),
+			    interpolate(eles[i - 1], eles[i], oldTime, newTime));
+		    to++;
+		}
+	    }
+	}
 	
-	for (int i = 0; i < accelerations.size(); i++) {
-	    double pressure = 101325 * Math.pow(
-		    (1 - ((0.0065 * eles.get(i)) / 288.15)),
-		    ((aGravity * 0.0289) / (8.314 * 0.0065)));
-	    double rho = (pressure * 0.0289) / (8.314 * outsideTemp);
-	    double airResCoeff = 0.5 * rho * vehicle.getCarCrossArea() * vehicle.getCarDragCoeff();
-	    
-	    double theta = 0;
-	    if (i > 0) {
-		final double eleDiff = eles.get(i) - eles.get(i - 1);
-		
-		if (planarDistances.get(i) < 1E-6) {  //Small distance (want to avoid infinite slope)
-		    theta = 0;
-		} else if (Math.abs(speeds.get(i)) < 0.50) { //Slow speed
-		    theta = 0;
-		} else if (eleDiff != 0) { //All other cases, except no elevation change
-		    theta = Math.atan(eleDiff / planarDistances.get(i));		   
+	private static Calendar interpolatedTime(long oldTime) {
+	    Calendar interpTime = Calendar.getInstance();
+	    interpTime.setTimeInMillis(oldTime + maxPeriodMS);
+	    return interpTime;
+	}
+
+	private static double interpolate(double oldValue, double newValue,
+		long oldTime, long newTime) {
+	    double pms = (newValue - oldValue) / (newTime - oldTime);
+	    return oldValue + maxPeriodMS * pms;
+	}
+
+	/**
+	 * Index of the first point whose acceleration, as the power model
+	 * computes it, is over the limit, -1 if there is none. Point i-1 gets
+	 * the acceleration into point i, so this checks from point start-1 on.
+	 */
+	int findSpike(int start) {
+	    // the first point's acceleration is always 0
+	    int i = Math.max(start, 2);
+	    if (i >= size) {
+		return -1;
+	    }
+	    double lastSpeed = speed(i - 1);
+	    for (; i < size; i++) {
+		double speed = speed(i);
+		double acceleration = 1000.0 * (speed - lastSpeed) / periodMS(i);
+		if (Math.abs(acceleration) > accLimit) {
+		    return i - 1;
 		}
+		lastSpeed = speed;
 	    }
-	    
-	    double mgsintheta = carMassKg*aGravity*Math.sin(theta);
-	    double mgcostheta = carMassKg*aGravity*Math.cos(theta);
-	    
-	    //Rolling resistance dependent on the normal force
-	    double rollingRes = vehicle.getRollingResCoeff() * mgcostheta;
-	    
-	    double airRes = airResCoeff * speeds.get(i) * speeds.get(i);
-	    //Total force on the car fNet = ma = fMotor - airRes - rollingres - mgsintheta
-	    double fNet = carMassKg * accelerations.get(i);  
-	    //Define fR to be sum of other forces
-	    double fRes = airRes + rollingRes + mgsintheta;
-	    double fMotor = fNet + fRes;
-	    double pwr = 0.0;
-	    double speed = speeds.get(i);
-	    if (fMotor > 0){ //Motor is applying power to the vehicle
-		pwr = fMotor * speed * ineff;
-	    } else { //Assume regen when motor force is negative
-		pwr = regenEff*fMotor*speed;		
+	    return -1;
+	}
+
+	private long periodMS(int i) {
+	    long msDiff = ms[i] - ms[i - 1];
+	    if (msDiff == 0) {
+		throw new IllegalArgumentException("Two trip points at "
+			+ ms[i] + "ms");
 	    }
-	    
-	    powerDemands.add(pwr + offset);// convert back to watts
-	    
+	    return msDiff;
 	}
-	double energySum = 0;
-	for (int i = 1; i < times.size(); i++) {
-	    int periodMS = (int) (times.get(i).getTimeInMillis() - times.get(
-		    i - 1).getTimeInMillis());
-	    double power = powerDemands.get(i);
-	    tripPoints.add(new PointFeatures(lats.get(i - 1), lons.get(i - 1),
-		    eles.get(i - 1), bearings.get(i - 1),planarDistances.get(i), accelerations
-		    .get(i), speeds.get(i), power, energySum,
-		    periodMS, times.get(i - 1)));
-	    energySum += power*(double)periodMS/1000.0/3600.0;//Watt hours
+
+	// speed from point i-1 to point i
+	private double speed(int i) {
+	    long msDiff = periodMS(i);
+	    double eleDiff = eles[i] - eles[i - 1];
+	    double tempDist = Haversine(lats[i - 1], lons[i - 1], lats[i], lons[i]);
+	    tempDist = Math.sqrt((tempDist * tempDist) + (eleDiff * eleDiff));
+	    double tempSpeed = 1000.0 * tempDist / msDiff;
+	    if (tempDist < 1E-5) {
+		return 0.0;
+	    }
+	    return tempSpeed;
 	}
-	PointFeatures endPoint = new PointFeatures(lats.get(lats.size() - 1),
-		lons.get(lons.size() - 1), eles.get(eles.size() - 1), bearings.get(bearings.size() - 1), 0.0, 0.0,
-		0.0, 0.0, energySum, 1000, times.get(times.size() - 1));
-	tripPoints.add(endPoint);
-	
-    }    
-    
-    
-    private static void removeTunnels(List<Calendar> times, List<Double> lats,
-	    List<Double> lons, List<Double> eles) {
-	// removes tunnel points, tunnels will be fixed later by interpolation
-	int consecutiveCounter = 0;
-	for (int i = 1; i < times.size(); i++) {
-	    if (lats.get(i).compareTo(lats.get(i - 1)) == 0
-		    && lons.get(i).compareTo(lons.get(i - 1)) == 0) {
-		// consecutive readings at the same position
+
+	/**
+	 * Removes point k, then redoes tunnel removal and interpolation where
+	 * that changed the trip. Returns the first point that changed, points
+	 * before it and their accelerations are as they were.
+	 */
+	int removeSpike(int k) {
+	    remove(k, k + 1);
+	    int changed = k;
+	    // the run of readings at one position that now ends at k-1
+	    int consecutiveCounter = 0;
+	    for (int j = k - 1; j > 0 && samePosition(j, j - 1); j--) {
 		consecutiveCounter++;
-	    } else if (consecutiveCounter > 0) {
-		// position has changed, after consectuive readings at same
-		// position
-		// can be tunnel, red light, etc...
-		if (Haversine(lats.get(i - 1), lons.get(i - 1), lats.get(i),
-			lons.get(i)) > 50) {
-		    // if traveled at least 50 metres, assume tunnel
-		    int from = i - consecutiveCounter;
-		    if(from == 1) from = 0;
-		    int to = i;
-		    times.subList(from, to).clear();
-		    lats.subList(from, to).clear();
-		    lons.subList(from, to).clear();
-		    eles.subList(from, to).clear();
-		    i = from;
+	    }
+	    // newest pair of points that were not neighbours before
+	    int newPair = k;
+	    int i = k;
+	    for (; i < size; i++) {
+		if (samePosition(i, i - 1)) {
+		    consecutiveCounter++;
+		    continue;
+		}
+		if (consecutiveCounter > 0) {
+		    if (Haversine(lats[i - 1], lons[i - 1], lats[i], lons[i]) > 50) {
+			int from = i - consecutiveCounter;
+			if (from == 1) from = 0;
+			remove(from, i);
+			changed = Math.min(changed, from);
+			newPair = from;
+			consecutiveCounter = 0;
+			i = from;
+			continue;
+		    }
+		    consecutiveCounter = 0;
+		}
+		// past every new pair the scan goes as it did before, which
+		// removed nothing
+		if (i > newPair) {
+		    break;
 		}
-		consecutiveCounter = 0;
 	    }
+	    interpolate(changed, i);
+	    return changed;
+	}
+
+	List<PointFeatures> runPowerModel(Vehicle vehicle) {
+	    double[] bearings = new double[size];
+	    double[] planarDistances = new double[size];
+	    double[] speeds = new double[size];
+	    double[] accelerations = new double[size];
+	    double[] powerDemands = new double[size];
+
+	    for (int i = 1; i < size; i++) {
+		long msDiff = periodMS(i);
+		double eleDiff = eles[i] - eles[i - 1];
+		double tempDist = Haversine(lats[i - 1], lons[i - 1], lats[i], lons[i]);
+		bearings[i - 1] = getBearing(lats[i - 1], lons[i - 1], lats[i], lons[i]);
+		planarDistances[i] = tempDist;
+		tempDist = Math.sqrt((tempDist * tempDist) + (eleDiff * eleDiff));
+		double tempSpeed = 1000.0 * tempDist / msDiff;
+
+		if (tempDist < 1E-5) {
+		    speeds[i] = 0.0;
+		} else {
+		    speeds[i] = tempSpeed;
+		}
+		accelerations[i] = 1000.0 * (speeds[i] - speeds[i - 1]) / msDiff;
+	    }
+	    bearings[size - 1] = bearings[size - 2];
+	    accelerations[1] = 0.0;
+	    speeds[0] = speeds[1];
+
+	    final double carMassKg = vehicle.getMass();
+	    final double aGravity = 9.81;
+	    final double offset = 240; //350 watts drawn
+	    final double ineff = 1;
+	    final double regenEff = 0.45;
+
+	    final double outsideTemp = ((84 + 459.67) * 5 / 9);// 60F to kelvin
+
+	    for (int i = 0; i < size; i++) {
+		double pressure = 101325 * Math.pow(
+			(1 - ((0.0065 * eles[i]) / 288.15)),
+			((aGravity * 0.0289) / (8.314 * 0.0065)));
+		double rho = (pressure * 0.0289) / (8.314 * outsideTemp);
+		double airResCoeff = 0.5 * rho * vehicle.getCarCrossArea() * vehicle.getCarDragCoeff();
+
+		double theta = 0;
+		if (i > 0) {
+		    final double eleDiff = eles[i] - eles[i - 1];
+
+		    if (planarDistances[i] < 1E-6) {  //Small distance (want to avoid infinite slope)
+			theta = 0;
+		    } else if (Math.abs(speeds[i]) < 0.50) { //Slow speed
+			theta = 0;
+		    } else if (eleDiff != 0) { //All other cases, except no elevation change
+			theta = Math.atan(eleDiff / planarDistances[i]);
+		    }
+		}
+
+		double mgsintheta = carMassKg*aGravity*Math.sin(theta);
+		double mgcostheta = carMassKg*aGravity*Math.cos(theta);
+
+		//Rolling resistance dependent on the normal force
+		double rollingRes = vehicle.getRollingResCoeff() * mgcostheta;
+
+		double airRes = airResCoeff * speeds[i] * speeds[i];
+		//Total force on the car fNet = ma = fMotor - airRes - rollingres - mgsintheta
+		double fNet = carMassKg * accelerations[i];
+		//Define fR to be sum of other forces
+		double fRes = airRes + rollingRes + mgsintheta;
+		double fMotor = fNet + fRes;
+		double pwr = 0.0;
+		double speed = speeds[i];
+		if (fMotor > 0){ //Motor is applying power to the vehicle
+		    pwr = fMotor * speed * ineff;
+		} else { //Assume regen when motor force is negative
+		    pwr = regenEff*fMotor*speed;
+		}
+
+		powerDemands[i] = pwr + offset;// convert back to watts
+	    }
+
+	    List<PointFeatures> tripPoints = new ArrayList<PointFeatures>(size);
+	    double energySum = 0;
+	    for (int i = 1; i < size; i++) {
+		int periodMS = (int) (ms[i] - ms[i - 1]);
+		double power = powerDemands[i];
+		tripPoints.add(new PointFeatures(lats[i - 1], lons[i - 1],
+			eles[i - 1], bearings[i - 1], planarDistances[i],
+			accelerations[i], speeds[i], power, energySum,
+			periodMS, times[i - 1]));
+		energySum += power*(double)periodMS/1000.0/3600.0;//Watt hours
+	    }
+	    PointFeatures endPoint = new PointFeatures(lats[size - 1],
+		    lons[size - 1], eles[size - 1], bearings[size - 1], 0.0, 0.0,
+		    0.0, 0.0, energySum, 1000, times[size - 1]);
+	    tripPoints.add(endPoint);
+	    return tripPoints;
 	}
-	
     }
     
     public static double Haversine(double lat1, double lon1, double lat2,
@@ -0,0 +1,384 @@
+package org.chargecar.prize.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Keeps the trips built from each GPX file in a binary file under a cache
+ * folder, so later runs read the point arrays back in one read instead of
+ * parsing the XML and running the power model again.
+ *
+ * A cache file is only used when it was written for the same GPX path,
+ * modification time and length, the same Vehicle parameters, the same
+ * default time zone, as GPX times are read as local times, and the same
+ * compiled TripBuilder2 and GPXTripParser. Otherwise the GPX file is
+ * parsed and the cache file written again.
+ *
+ * Caching is off unless a folder is given: getDefault() only caches when
+ * the chargecar.tripcache system property names one.
+ */
+public class TripCache {
+    //"CCTR" read as a little endian int
+    static final int MAGIC = 0x52544343;
+    static final int VERSION = 2;
+    //system property naming the default cache folder
+    public static final String FOLDER_PROPERTY = "chargecar.tripcache";
+    //changes when the classes that build trips do, 0 if they cannot be read
+    static final long MODEL_HASH = classHash(TripBuilder2.class, GPXTripParser.class);
+
+    //null when trips are not cached
+    private final File folder;
+
+    /**
+     * @param folder where the cache files go, null to always parse
+     */
+    public TripCache(File folder){
+	this.folder = folder;
+    }
+
+    /**
+     * The cache in the folder named by the chargecar.tripcache system
+     * property, e.g. -Dchargecar.tripcache=/tmp/tripcache, and no caching
+     * when it is not set.
+     */
+    public static TripCache getDefault(){
+	String folder = System.getProperty(FOLDER_PROPERTY);
+	return new TripCache(folder == null ? null : new File(folder));
+    }
+
+    /**
+     * The file's trips, from the cache when it is current, otherwise
+     * parsed and then cached.
+     */
+    public List<Trip> getTrips(File gpxFile, Vehicle vehicle) throws IOException {
+	final List<Trip> trips = new ArrayList<Trip>();
+	readTrips(gpxFile, vehicle, new ParallelTripReader.TripHandler(){
+	    public void handle(Trip trip){
+		trips.add(trip);
+	    }
+	});
+	return trips;
+    }
+
+    /**
+     * Passes the file's trips to the handler in file order. Cached trips
+     * are read in one go; otherwise each trip is handed on as it is parsed
+     * and appended to the cache file, so only one is held at a time. A
+     * cache file that cannot be written is reported and the file still
+     * read.
+     */
+    public void readTrips(final File gpxFile, final Vehicle vehicle, final ParallelTripReader.TripHandler handler) throws IOException {
+	final CacheWriter writer;
+	if(folder == null || MODEL_HASH == 0) writer = null;
+	else {
+	    File cacheFile = getCacheFile(gpxFile);
+	    List<Trip> trips = read(cacheFile, gpxFile, vehicle);
+	    if(trips != null){
+		for(Trip trip : trips) handler.handle(trip);
+		return;
+	    }
+	    writer = open(cacheFile, gpxFile, vehicle);
+	}
+	final int[] i = new int[1];
+	boolean complete = false;
+	try {
+	    new GPXTripParser().read(gpxFile, vehicle, new GPXTripParser.TripListener(){
+		public void tripParsed(List<PointFeatures> tripPoints){
+		    Trip trip = ParallelTripReader.newTrip(gpxFile, i[0]++, vehicle, tripPoints);
+		    if(writer != null) writer.add(trip);
+		    handler.handle(trip);
+		}
+	    });
+	    complete = true;
+	} finally {
+	    if(writer != null){
+		if(complete) writer.commit();
+		else writer.abort();
+	    }
+	}
+    }
+
+    public File getCacheFile(File gpxFile){
+	String path = gpxFile.getAbsolutePath();
+	long hash = 1125899906842597L;
+	for(int i=0;i<path.length();i++) hash = 31*hash + path.charAt(i);
+	return new File(folder, gpxFile.getName()+"_"+Long.toHexString(hash)+".trips");
+    }
+
+    /**
+     * The cached trips, null when there are none, they are stale or the
+     * cache file cannot be read.
+     */
+    private static List<Trip> read(File cacheFile, File gpxFile, Vehicle vehicle){
+	if(!cacheFile.isFile()) return null;
+	ByteBuffer in;
+	try {
+	    in = readFully(cacheFile);
+	} catch (IOException e) {
+	    System.err.println("Could not read cached trips of "+gpxFile+": "+e.getMessage());
+	    return null;
+	}
+	try {
+	    if(in.getInt() != MAGIC || in.getInt() != VERSION || in.getLong() != MODEL_HASH) return null;
+	    if(!getString(in).equals(gpxFile.getAbsolutePath())) return null;
+	    if(in.getLong() != gpxFile.lastModified() || in.getLong() != gpxFile.length()) return null;
+	    if(in.getDouble() != vehicle.getMass() || in.getDouble() != vehicle.getCarCrossArea()
+		    || in.getDouble() != vehicle.getCarDragCoeff() || in.getDouble() != vehicle.getRollingResCoeff()) return null;
+	    if(!getString(in).equals(TimeZone.getDefault().getID())) return null;
+	    int tripCount = getLength(in, 4);
+	    List<Trip> trips = new ArrayList<Trip>(tripCount);
+	    for(int i=0;i<tripCount;i++){
+		trips.add(ParallelTripReader.newTrip(gpxFile, i, vehicle, getPoints(in)));
+	    }
+	    return trips;
+	} catch (BufferUnderflowException e) {
+	    //cut short, e.g. by a run killed while writing
+	    return null;
+	}
+    }
+
+    //a writer for the cache file, null when it cannot be created
+    private CacheWriter open(File cacheFile, File gpxFile, Vehicle vehicle){
+	try {
+	    return new CacheWriter(cacheFile, gpxFile, vehicle);
+	} catch (IOException e) {
+	    System.err.println("Could not cache trips of "+gpxFile+": "+e.getMessage());
+	    return null;
+	}
+    }
+
+    /**
+     * Writes a cache file trip by trip, aside under a temporary name that
+     * commit() renames, so a reader never sees half a file. The trip count
+     * is filled in by commit(). Write errors are reported once and the
+     * file dropped.
+     */
+    private class CacheWriter {
+	private final File cacheFile;
+	private final File gpxFile;
+	private final File temp;
+	private final RandomAccessFile out;
+	private final long countPosition;
+	private int tripCount;
+	private boolean failed;
+
+	CacheWriter(File cacheFile, File gpxFile, Vehicle vehicle) throws IOException {
+	    this.cacheFile = cacheFile;
+	    this.gpxFile = gpxFile;
+	    String path = gpxFile.getAbsolutePath();
+	    String zone = TimeZone.getDefault().getID();
+	    ByteBuffer header = allocate(16 + 4+2*path.length() + 16 + 32 + 4+2*zone.length() + 4L);
+	    header.putInt(MAGIC);
+	    header.putInt(VERSION);
+	    header.putLong(MODEL_HASH);
+	    putString(header, path);
+	    header.putLong(gpxFile.lastModified());
+	    header.putLong(gpxFile.length());
+	    header.putDouble(vehicle.getMass());
+	    header.putDouble(vehicle.getCarCrossArea());
+	    header.putDouble(vehicle.getCarDragCoeff());
+	    header.putDouble(vehicle.getRollingResCoeff());
+	    putString(header, zone);
+	    countPosition = header.position();
+	    header.putInt(0);
+
+	    folder.mkdirs();
+	    temp = File.createTempFile(cacheFile.getName(), ".tmp", folder);
+	    out = new RandomAccessFile(temp, "rw");
+	    try {
+		write(header);
+	    } catch (IOException e) {
+		out.close();
+		temp.delete();
+		throw e;
+	    }
+	}
+
+	void add(Trip trip){
+	    if(failed) return;
+	    ColumnarTrip ct = new ColumnarTrip(trip);
+	    try {
+		ByteBuffer block = allocate(4 + (long)ct.size()*(9*8 + 4 + 8));
+		block.putInt(ct.size());
+		putDoubles(block, ct.getLatitudes());
+		putDoubles(block, ct.getLongitudes());
+		putDoubles(block, ct.getElevations());
+		putDoubles(block, ct.getBearings());
+		putDoubles(block, ct.getPlanarDists());
+		putDoubles(block, ct.getAccelerations());
+		putDoubles(block, ct.getSpeeds());
+		putDoubles(block, ct.getPowerDemands());
+		putDoubles(block, ct.getTotalPowersUsed());
+		block.asIntBuffer().put(ct.getPeriodsMS());
+		block.position(block.position() + 4*ct.size());
+		block.asLongBuffer().put(ct.getTimes());
+		block.position(block.position() + 8*ct.size());
+		write(block);
+		tripCount++;
+	    } catch (IOException e) {
+		fail(e);
+	    }
+	}
+
+	void commit(){
+	    if(failed) return;
+	    try {
+		ByteBuffer count = allocate(4);
+		count.putInt(tripCount);
+		out.seek(countPosition);
+		write(count);
+		out.close();
+		cacheFile.delete();
+		if(!temp.renameTo(cacheFile)) throw new IOException("Could not rename "+temp+" to "+cacheFile);
+	    } catch (IOException e) {
+		fail(e);
+	    }
+	}
+
+	void abort(){
+	    failed = true;
+	    close();
+	}
+
+	private void fail(IOException e){
+	    System.err.println("Could not cache trips of "+gpxFile+": "+e.getMessage());
+	    abort();
+	}
+
+	private void close(){
+	    try {
+		out.close();
+	    } catch (IOException e) {
+		//the file is dropped anyway
+	    }
+	    temp.delete();
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+	    buffer.flip();
+	    FileChannel channel = out.getChannel();
+	    while(buffer.hasRemaining()) channel.write(buffer);
+	}
+    }
+
+    private static ByteBuffer allocate(long bytes) throws IOException {
+	if(bytes > Integer.MAX_VALUE) throw new IOException("Too many points to cache");
+	return ByteBuffer.allocate((int)bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static List<PointFeatures> getPoints(ByteBuffer in){
+	int size = getLength(in, 9*8 + 4 + 8);
+	double[] lat = getDoubles(in, size);
+	double[] lon = getDoubles(in, size);
+	double[] ele = getDoubles(in, size);
+	double[] bearing = getDoubles(in, size);
+	double[] planarDist = getDoubles(in, size);
+	double[] acceleration = getDoubles(in, size);
+	double[] speed = getDoubles(in, size);
+	double[] powerDemand = getDoubles(in, size);
+	double[] totalPowerUsed = getDoubles(in, size);
+	int[] periodMS = new int[size];
+	in.asIntBuffer().get(periodMS);
+	in.position(in.position() + 4*size);
+	long[] time = new long[size];
+	in.asLongBuffer().get(time);
+	in.position(in.position() + 8*size);
+
+	List<PointFeatures> points = new ArrayList<PointFeatures>(size);
+	for(int i=0;i<size;i++){
+	    Calendar t = null;
+	    if(time[i] != ColumnarTrip.NO_TIME){
+		//the default zone, as GPXTripParser reads times
+		t = Calendar.getInstance();
+		t.setTimeInMillis(time[i]);
+	    }
+	    points.add(new PointFeatures(lat[i], lon[i], ele[i], bearing[i], planarDist[i],
+		    acceleration[i], speed[i], powerDemand[i], totalPowerUsed[i], periodMS[i], t));
+	}
+	return points;
+    }
+
+    private static ByteBuffer readFully(File file) throws IOException {
+	FileInputStream fis = new FileInputStream(file);
+	try {
+	    FileChannel channel = fis.getChannel();
+	    if(channel.size() > Integer.MAX_VALUE) throw new IOException("Cache file too large: "+file);
+	    ByteBuffer in = ByteBuffer.allocate((int)channel.size());
+	    while(in.hasRemaining() && channel.read(in) >= 0);
+	    in.flip();
+	    return in.order(ByteOrder.LITTLE_ENDIAN);
+	} finally {
+	    fis.close();
+	}
+    }
+
+    //hash of the classes' bytecode, with their nested classes
+    private static long classHash(Class<?>... classes){
+	long hash = 1125899906842597L;
+	try {
+	    for(Class<?> c : classes){
+		String name = c.getName();
+		InputStream in = c.getResourceAsStream(name.substring(name.lastIndexOf('.')+1)+".class");
+		if(in == null) return 0;
+		try {
+		    byte[] buffer = new byte[8192];
+		    int read;
+		    while((read = in.read(buffer)) > 0){
+			for(int i=0;i<read;i++) hash = 31*hash + buffer[i];
+		    }
+		} finally {
+		    in.close();
+		}
+		long nested = classHash(c.getDeclaredClasses());
+		if(nested == 0) return 0;
+		hash = 31*hash + nested;
+	    }
+	} catch (IOException e) {
+	    return 0;
+	}
+	return hash;
+    }
+
+    //a count that fits in what is left of the file
+    private static int getLength(ByteBuffer in, int bytesEach){
+	int length = in.getInt();
+	if(length < 0 || length > in.remaining()/bytesEach) throw new BufferUnderflowException();
+	return length;
+    }
+
+    private static double[] getDoubles(ByteBuffer in, int count){
+	double[] values = new double[count];
+	in.asDoubleBuffer().get(values);
+	in.position(in.position() + 8*count);
+	return values;
+    }
+
+    private static void putDoubles(ByteBuffer out, double[] values){
+	out.asDoubleBuffer().put(values);
+	out.position(out.position() + 8*values.length);
+    }
+
+    private static String getString(ByteBuffer in){
+	char[] chars = new char[getLength(in, 2)];
+	in.asCharBuffer().get(chars);
+	in.position(in.position() + 2*chars.length);
+	return new String(chars);
+    }
+
+    private static void putString(ByteBuffer out, String s){
+	out.putInt(s.length());
+	out.asCharBuffer().put(s);
+	out.position(out.position() + 2*s.length());
+    }
+}
@@ -65,9 +65,17 @@ public class CSVWriter implements Visualizer {
     }
     
     public void writeTripPowers(List<PointFeatures> pfs) {
+	writeTripPowers(pfs, false);
+    }
+
+    /**
+     * Writes the points' time, speed and power, after what the file already
+     * holds when append is true.
+     */
+    public void writeTripPowers(List<PointFeatures> pfs, boolean append) {
 	FileWriter fstream;
 	try {
-	    fstream = new FileWriter(filename);
+	    fstream = new FileWriter(filename, append);
 	    BufferedWriter out = new BufferedWriter(fstream);
 	    for(PointFeatures pf : pfs){
 		out.write(pf.getTime().getTimeInMillis()/1000+",");